@@ -5,10 +5,15 @@ import java.net.Socket;
 import java.util.Properties;
 
 import org.andresoviedo.apps.gdrive_ftp_adapter.controller.Controller;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.BlockCache;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.Cache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.ContentCache;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.SQLiteCache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.UploadSessions;
 import org.andresoviedo.apps.gdrive_ftp_adapter.service.FtpGdriveSynchService;
+import org.andresoviedo.apps.gdrive_ftp_adapter.service.Prefetcher;
+import org.andresoviedo.apps.gdrive_ftp_adapter.service.UploadQueue;
 import org.andresoviedo.apps.gdrive_ftp_adapter.view.ftp.GFtpServerFactory;
 import org.apache.ftpserver.FtpServerFactory;
 import org.apache.ftpserver.ftplet.FtpException;
@@ -20,8 +25,12 @@ public final class GDriveFtpAdapter {
 
 	private final org.apache.ftpserver.FtpServer server;
 	private final Cache cache;
+	private final ContentCache contentCache;
+	private final BlockCache blockCache;
 	private final GoogleDrive googleDrive;
 	private final FtpGdriveSynchService cacheUpdater;
+	private final Prefetcher prefetcher;
+	private final UploadQueue uploadQueue;
 	private final Controller controller;
 
 	public GDriveFtpAdapter(Properties configuration) {
@@ -33,11 +42,19 @@ public final class GDriveFtpAdapter {
 
 		cache = new SQLiteCache(configuration);
 
-		googleDrive = new GoogleDrive(configuration);
+		contentCache = new ContentCache(configuration);
+
+		blockCache = new BlockCache(configuration);
+
+		googleDrive = new GoogleDrive(configuration, new UploadSessions(configuration));
 		
-		cacheUpdater = new FtpGdriveSynchService(configuration, cache, googleDrive);
+		cacheUpdater = new FtpGdriveSynchService(configuration, cache, contentCache, googleDrive);
+
+		prefetcher = new Prefetcher(configuration, googleDrive, contentCache);
+
+		uploadQueue = new UploadQueue(configuration, cache, googleDrive, cacheUpdater);
 
-		controller = new Controller(cache, googleDrive, cacheUpdater);
+		controller = new Controller(configuration, cache, contentCache, blockCache, googleDrive, cacheUpdater, prefetcher, uploadQueue);
 
 		// FTP Setup
 		FtpServerFactory serverFactory = new GFtpServerFactory(controller, cache, configuration);
@@ -58,6 +75,8 @@ public final class GDriveFtpAdapter {
 
 	public void stop() {
 		cacheUpdater.stop();
+		prefetcher.stop();
+		uploadQueue.stop();
 		server.stop();
 		LOG.info("Application stopped.");
 	}
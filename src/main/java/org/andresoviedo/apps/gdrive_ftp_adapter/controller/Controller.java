@@ -1,7 +1,7 @@
 package org.andresoviedo.apps.gdrive_ftp_adapter.controller;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -9,12 +9,25 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.BlockCache;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.Cache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.ContentCache;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.ResumableUpload;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.SegmentedDownload;
 import org.andresoviedo.apps.gdrive_ftp_adapter.service.FtpGdriveSynchService;
+import org.andresoviedo.apps.gdrive_ftp_adapter.service.Prefetcher;
+import org.andresoviedo.apps.gdrive_ftp_adapter.service.UploadQueue;
+import org.andresoviedo.util.io.AbortableOutputStream;
+import org.andresoviedo.util.io.BufferPool;
+import org.andresoviedo.util.io.FileChannelInputStream;
+import org.andresoviedo.util.io.Md5OutputStream;
+import org.andresoviedo.util.io.SpoolOutputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -67,13 +80,50 @@ public final class Controller {
 
 	private final Cache cache;
 
+	private final ContentCache contentCache;
+
+	private final BlockCache blockCache;
+
+	private final Prefetcher prefetcher;
+
+	private final UploadQueue uploadQueue;
+
+	/**
+	 * Whether to stream downloads directly to the client or to spool them first to a temporary file
+	 */
+	private final boolean streamDownloads;
+
+	/**
+	 * Whether to upload the content while the client sends it or to spool it first
+	 */
+	private final boolean streamUploads;
+
+	/**
+	 * Off-heap memory where the uploads are spooled before sending them. Uploads bigger than <code>uploadSpoolMaxFileSize</code>
+	 * or that don't fit in the pool spill to disk
+	 */
+	private final BufferPool uploadBuffers;
+
+	private final long uploadSpoolMaxFileSize;
+
 	// TODO: patch: retry action if we receive multiple requests in a few amount of time. This should be done in a separate component
 	private final Map<String, ControllerRequest> lastQueries = new LRUCache<String, ControllerRequest>(10);
 
-	public Controller(Cache cache, GoogleDrive googleDrive, FtpGdriveSynchService updaterService) {
+	public Controller(Properties configuration, Cache cache, ContentCache contentCache, BlockCache blockCache, GoogleDrive googleDrive,
+			FtpGdriveSynchService updaterService, Prefetcher prefetcher, UploadQueue uploadQueue) {
 		this.googleDriveService = googleDrive;
 		this.updaterService = updaterService;
 		this.cache = cache;
+		this.contentCache = contentCache;
+		this.blockCache = blockCache;
+		this.prefetcher = prefetcher;
+		this.uploadQueue = uploadQueue;
+		this.streamDownloads = !"file".equals(configuration.getProperty("download.mode", "stream"));
+		this.streamUploads = !"file".equals(configuration.getProperty("upload.mode", "stream"));
+		this.uploadBuffers = new BufferPool(64 * 1024, Long.parseLong(configuration.getProperty("upload.spool.size",
+				String.valueOf(64 * 1024 * 1024))));
+		this.uploadSpoolMaxFileSize = Long.parseLong(configuration.getProperty("upload.spool.maxFileSize",
+				String.valueOf(8 * 1024 * 1024)));
 	}
 
 	public void init() {
@@ -99,7 +149,9 @@ public final class Controller {
 		}
 		// patch
 
-		return cache.getFiles(folderId);
+		List<GFile> files = cache.getFiles(folderId);
+		prefetcher.onListing(folderId, files);
+		return files;
 	}
 
 	public boolean renameFile(GFile file, String newName) {
@@ -146,10 +198,21 @@ public final class Controller {
 		return false;
 	}
 
+	/**
+	 * @return the size of the file. Google documents have no size until they are exported, so the size of the cached export is
+	 *         returned if known
+	 */
+	public long getSize(GFile file) {
+		if (file.getSize() == 0 && !file.isDirectory()) {
+			return contentCache.getExportSize(file);
+		}
+		return file.getSize();
+	}
+
 	public boolean trashFile(GFile file) {
 		String fileId = file.getId();
 		LOG.info("Deleting file " + fileId + "...");
-		boolean ret = googleDriveService.trashFile(fileId, 3) != null;
+		boolean ret = googleDriveService.trashFile(fileId) != null;
 		if (ret)
 			cache.deleteFile(fileId);
 		return ret;
@@ -163,56 +226,277 @@ public final class Controller {
 		return ret;
 	}
 
-	// TODO: Implement offset
 	public InputStream createInputStream(GFile fTPGFile, long offset) {
-		File transferFile = googleDriveService.downloadFile(fTPGFile);
-		if (transferFile == null) {
+		// files in the upload queue are not in google drive yet
+		File pendingFile = uploadQueue.getPendingContent(fTPGFile);
+		if (pendingFile != null) {
+			try {
+				return openLocalFile(pendingFile, offset);
+			} catch (IOException ex) {
+				LOG.warn("Pending upload of '" + fTPGFile.getName() + "' couldn't be read: " + ex.getMessage());
+			}
+		}
+
+		// wait for the file if it's being prefetched and start prefetching the next ones
+		prefetcher.onRetr(fTPGFile);
+
+		File cachedFile = contentCache.get(fTPGFile);
+		if (cachedFile != null) {
+			try {
+				return openLocalFile(cachedFile, offset);
+			} catch (IOException ex) {
+				LOG.warn("Cached content of '" + fTPGFile.getName() + "' couldn't be read: " + ex.getMessage());
+			}
+		}
+
+		// huge files are cached by blocks, so we only download what is actually read. The download url is only resolved if a block
+		// is missing
+		if (blockCache.accepts(fTPGFile)) {
+			try {
+				return blockCache.open(fTPGFile, offset, createRangeSource(fTPGFile));
+			} catch (IOException ex) {
+				LOG.warn("Block cache of '" + fTPGFile.getName() + "' couldn't be opened: " + ex.getMessage());
+			}
+		}
+
+		// the download url comes from the metadata cache unless it's stale
+		long downloadUrlTime = fTPGFile.getDownloadUrlTime();
+		if (streamDownloads) {
+			InputStream downloadStream = googleDriveService.downloadFileStream(fTPGFile, offset);
+			// url may have been refreshed because it was rejected
+			updateDownloadUrl(fTPGFile, downloadUrlTime);
+			// partial downloads are not cached
+			return offset == 0 ? contentCache.store(fTPGFile, downloadStream) : downloadStream;
+		}
+
+		// only the bytes from the offset are downloaded
+		File downloadedFile = googleDriveService.downloadFile(fTPGFile, offset);
+		updateDownloadUrl(fTPGFile, downloadUrlTime);
+		if (downloadedFile == null) {
 			throw new IllegalStateException("No se dispone de la URL de descarga");
 		}
 
+		// the file is moved to the content cache if possible, otherwise it must be deleted after the transfer. Partial downloads
+		// are not cached
+		cachedFile = offset == 0 ? contentCache.store(fTPGFile, downloadedFile) : downloadedFile;
+		if (cachedFile != downloadedFile) {
+			try {
+				return openLocalFile(cachedFile, offset);
+			} catch (IOException ex) {
+				return null;
+			}
+		}
+
+		final File transferFile = downloadedFile;
 		try {
-			InputStream transferFileInputStream = FileUtils.openInputStream(transferFile);
-			transferFileInputStream.skip(offset);
+			InputStream transferFileInputStream = new FileInputStream(transferFile) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					FileUtils.deleteQuietly(transferFile);
+				}
+			};
 			return transferFileInputStream;
 		} catch (IOException ex) {
+			FileUtils.deleteQuietly(transferFile);
 			return null;
 		}
 
 	}
 
-	public OutputStream createOutputStream(final GFile fTPGFileW, long offset) {
-		final GFile fTPGFile = fTPGFileW;
+	/**
+	 * @return source of byte ranges of the file that stores the download url when it's resolved or refreshed
+	 */
+	private SegmentedDownload.RangeSource createRangeSource(final GFile file) {
+		final SegmentedDownload.RangeSource source = googleDriveService.createRangeSource(file);
+		return new SegmentedDownload.RangeSource() {
+			@Override
+			public InputStream open(long from, long to) throws IOException {
+				long downloadUrlTime = file.getDownloadUrlTime();
+				try {
+					return source.open(from, to);
+				} finally {
+					updateDownloadUrl(file, downloadUrlTime);
+				}
+			}
+		};
+	}
+
+	private void updateDownloadUrl(GFile file, long previousDownloadUrlTime) {
+		if (file.getDownloadUrlTime() != previousDownloadUrlTime) {
+			cache.updateDownloadUrl(file);
+		}
+	}
+
+	private static InputStream openLocalFile(File file, long offset) throws IOException {
+		return new FileChannelInputStream(file, offset);
+	}
+
+	public OutputStream createOutputStream(final GFile fTPGFile, long offset) {
 		if (fTPGFile.isDirectory()) {
 			throw new IllegalArgumentException("createOutputStream en directorio?");
 		}
 
-		OutputStream transferFileOutputStream;
+		final AbortableOutputStream upload;
 		try {
-			final File transferFile = File.createTempFile("gdrive-synch-", ".upload." + fTPGFile.getName());
-			fTPGFile.setTransferFile(transferFile);
-			transferFileOutputStream = new FileOutputStream(transferFile) {
-				@Override
-				public void close() throws IOException {
-					com.google.api.services.drive.model.File updatedGoogleFile = null;
-					super.close();
-					try {
-						if (!fTPGFileW.isExists()) {
-							// New file
-							updatedGoogleFile = googleDriveService.uploadFile(fTPGFile);
-						} else {
-							// Update file
-							updatedGoogleFile = googleDriveService.uploadFile(fTPGFile);
-						}
-						updaterService.updateNow(updatedGoogleFile.getId());
-					} finally {
-						FileUtils.deleteQuietly(fTPGFile.getTransferFile());
-					}
+			if (offset > 0 && streamUploads && !uploadQueue.isEnabled()) {
+				// an interrupted upload of the file is continued if google drive already has the bytes up to the offset
+				ResumableUpload resumed = googleDriveService.uploadFileStream(fTPGFile, offset);
+				if (resumed != null) {
+					return createStreamUpload(resumed);
 				}
-			};
-			return transferFileOutputStream;
-		} catch (Exception e) {
+			}
+			if (uploadQueue.isEnabled()) {
+				upload = uploadQueue.createOutputStream(fTPGFile);
+			} else if (streamUploads) {
+				upload = createStreamUpload(googleDriveService.uploadFileStream(fTPGFile, 0));
+			} else {
+				upload = createFileUpload(fTPGFile);
+			}
+			if (offset > 0) {
+				writePrefix(fTPGFile, offset, upload);
+			}
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		if (offset > 0 || !fTPGFile.isExists() || fTPGFile.getMd5Checksum() == null) {
+			return upload;
+		}
+
+		// the checksum is computed while the client sends the content, so files that haven't changed are not uploaded again
+		final Md5OutputStream checksum = new Md5OutputStream(upload);
+		return new AbortableOutputStream(checksum) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				// a pending upload of the file will change the content anyway
+				if (fTPGFile.getMd5Checksum().equals(checksum.getMd5()) && uploadQueue.getPendingContent(fTPGFile) == null) {
+					LOG.info("Content of '" + fTPGFile.getName() + "' hasn't changed. Skipping upload...");
+					upload.abort();
+					updateLastModified(fTPGFile, System.currentTimeMillis());
+					return;
+				}
+				super.close();
+			}
+
+			@Override
+			public void abort() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				upload.abort();
+			}
+		};
+	}
+
+	/**
+	 * Writes the first bytes of the current content of the file to the upload, so the client only sends the rest (APPE or
+	 * REST+STOR). The content comes from local disk if possible, otherwise only the needed range is downloaded.
+	 */
+	private void writePrefix(GFile fTPGFile, long length, AbortableOutputStream upload) throws IOException {
+		try {
+			if (!fTPGFile.isExists() || ContentCache.isExport(fTPGFile) || length > fTPGFile.getSize()) {
+				throw new IOException("Upload of '" + fTPGFile.getName() + "' can't start at byte " + length);
+			}
+			LOG.info("Merging first " + length + " bytes of '" + fTPGFile.getName() + "' with the uploaded content...");
+			InputStream prefix = openPrefix(fTPGFile, length);
+			try {
+				if (IOUtils.copyLarge(prefix, upload, 0, length) < length) {
+					throw new IOException("Content of '" + fTPGFile.getName() + "' is shorter than " + length + " bytes");
+				}
+			} finally {
+				prefix.close();
+			}
+		} catch (IOException e) {
+			upload.abort();
+			throw e;
+		}
+	}
+
+	private InputStream openPrefix(GFile fTPGFile, long length) throws IOException {
+		File localFile = uploadQueue.getPendingContent(fTPGFile);
+		if (localFile == null) {
+			localFile = contentCache.get(fTPGFile);
+		}
+		if (localFile != null) {
+			return openLocalFile(localFile, 0);
+		}
+		return createRangeSource(fTPGFile).open(0, length - 1);
+	}
+
+	private AbortableOutputStream createStreamUpload(final ResumableUpload upload) {
+		return new AbortableOutputStream(upload) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				updaterService.updateNow(upload.getUploadedFile().getId());
+			}
+
+			@Override
+			public void abort() throws IOException {
+				// the session is kept so the client can continue the upload with REST+STOR
+				upload.abort();
+			}
+		};
+	}
+
+	/**
+	 * @return the new file created as a server side copy of a file with the same content or <code>null</code> if there is none
+	 */
+	private com.google.api.services.drive.model.File copyFile(GFile newFile, String md5, long length) {
+		GFile source = length > 0 ? cache.getFileByMd5(md5, length) : null;
+		if (source == null) {
+			return null;
+		}
+		LOG.info("Content of '" + newFile.getName() + "' found in file '" + source.getName() + "'. Copying it...");
+		return googleDriveService.copyFile(source.getId(), newFile);
+	}
+
+	private AbortableOutputStream createFileUpload(final GFile fTPGFile) {
+		// small files are kept in memory, bigger ones spill to a temporary file
+		final SpoolOutputStream spool = new SpoolOutputStream(uploadBuffers, uploadSpoolMaxFileSize, fTPGFile.getName());
+		// new files with the same content of another file are copied instead of uploaded
+		final Md5OutputStream checksum = !fTPGFile.isExists() ? new Md5OutputStream(spool) : null;
+		return new AbortableOutputStream(checksum != null ? checksum : spool) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				// ftpserver closes the stream twice after a successful transfer
+				if (closed) {
+					return;
+				}
+				closed = true;
+				super.close();
+				try {
+					com.google.api.services.drive.model.File updatedGoogleFile = null;
+					if (checksum != null) {
+						updatedGoogleFile = copyFile(fTPGFile, checksum.getMd5(), spool.getLength());
+					}
+					if (updatedGoogleFile == null) {
+						updatedGoogleFile = googleDriveService.uploadFile(fTPGFile, spool);
+					}
+					updaterService.updateNow(updatedGoogleFile.getId());
+				} finally {
+					spool.dispose();
+				}
+			}
+
+			@Override
+			public void abort() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				spool.dispose();
+			}
+		};
 	}
 
 }
@@ -0,0 +1,414 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.SegmentedDownload.RangeSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Block level disk cache for huge files that are read partially or at random offsets (videos, disk images, resumed transfers).
+ * <p>
+ * Every file (id + md5) is stored in a sparse file of the same size and a bitmap with the blocks already downloaded. Only the
+ * missing blocks are fetched with ranged requests, adjacent missing blocks are fetched with a single request, and the reader
+ * continues as soon as its block is written.
+ *
+ * @author andresoviedo
+ */
+public final class BlockCache {
+
+	private static final Log LOG = LogFactory.getLog(BlockCache.class);
+
+	/**
+	 * Max number of adjacent blocks fetched in a single request
+	 */
+	private static final int MAX_BLOCKS_PER_REQUEST = 4;
+
+	private final File cacheDir;
+
+	private final long maxSize;
+
+	private final int blockSize;
+
+	private final long threshold;
+
+	private final Map<String, BlockFile> files = new ConcurrentHashMap<String, BlockFile>();
+
+	private final AtomicLong size = new AtomicLong();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	public BlockCache(Properties configuration) {
+		String account = configuration.getProperty("account", "default");
+		maxSize = Long.parseLong(configuration.getProperty("blockcache.size", String.valueOf(2L * 1024 * 1024 * 1024)));
+		blockSize = Integer.parseInt(configuration.getProperty("blockcache.blockSize", String.valueOf(4 * 1024 * 1024)));
+		threshold = Long.parseLong(configuration.getProperty("blockcache.threshold", String.valueOf(256L * 1024 * 1024)));
+
+		cacheDir = new File("data" + File.separator + account + File.separator + "blocks");
+		if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+			throw new RuntimeException("Could not create block cache folder " + cacheDir.getAbsolutePath());
+		}
+
+		for (File bitmapFile : cacheDir.listFiles()) {
+			if (bitmapFile.getName().endsWith(".bitmap.tmp")) {
+				// bitmap not written completely, the previous one is still valid
+				FileUtils.deleteQuietly(bitmapFile);
+				continue;
+			}
+			if (!bitmapFile.getName().endsWith(".bitmap")) {
+				continue;
+			}
+			String key = bitmapFile.getName().substring(0, bitmapFile.getName().length() - ".bitmap".length());
+			File dataFile = new File(cacheDir, key + ".data");
+			if (!dataFile.exists()) {
+				FileUtils.deleteQuietly(bitmapFile);
+				continue;
+			}
+			try {
+				BlockFile blockFile = new BlockFile(key, dataFile.length(), bitmapFile.lastModified());
+				files.put(key, blockFile);
+				size.addAndGet(blockFile.getCachedBytes());
+			} catch (IOException e) {
+				LOG.warn("Block cache entry '" + key + "' couldn't be loaded: " + e.getMessage());
+			}
+		}
+		LOG.info("Block cache '" + cacheDir + "' loaded with " + files.size() + " files, " + size + " bytes (max " + maxSize + " bytes)");
+	}
+
+	/**
+	 * @return <code>true</code> if the file should be read through this cache
+	 */
+	public boolean accepts(GFile file) {
+		return maxSize > 0 && !file.isDirectory() && file.getMd5Checksum() != null && file.getSize() >= threshold;
+	}
+
+	/**
+	 * Open the file at the specified offset. Missing blocks are fetched from the source while reading.
+	 *
+	 * @param file
+	 *            the file
+	 * @param offset
+	 *            first byte to read
+	 * @param source
+	 *            where to get the missing blocks from
+	 * @return the stream with the file content starting at <code>offset</code>
+	 */
+	public InputStream open(GFile file, long offset, RangeSource source) throws IOException {
+		String key = file.getId() + "-" + file.getMd5Checksum();
+		BlockFile blockFile;
+		synchronized (files) {
+			blockFile = files.get(key);
+			if (blockFile == null) {
+				blockFile = new BlockFile(key, file.getSize(), System.currentTimeMillis());
+				files.put(key, blockFile);
+			}
+			blockFile.users++;
+		}
+		return new BlockInputStream(blockFile, file.getName(), source, offset);
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Remove the least recently used files until the cache fits in its max size
+	 */
+	private void evict() {
+		if (size.get() <= maxSize) {
+			return;
+		}
+		synchronized (files) {
+			List<BlockFile> candidates = new ArrayList<BlockFile>(files.values());
+			Collections.sort(candidates, new Comparator<BlockFile>() {
+				@Override
+				public int compare(BlockFile o1, BlockFile o2) {
+					return Long.compare(o1.lastAccess, o2.lastAccess);
+				}
+			});
+			for (BlockFile candidate : candidates) {
+				if (size.get() <= maxSize) {
+					break;
+				}
+				if (candidate.users > 0) {
+					continue;
+				}
+				files.remove(candidate.key);
+				size.addAndGet(-candidate.getCachedBytes());
+				candidate.delete();
+				LOG.debug("Evicted '" + candidate.key + "' from block cache");
+			}
+		}
+	}
+
+	/**
+	 * Sparse file with its bitmap of downloaded blocks
+	 */
+	private final class BlockFile {
+
+		private final String key;
+
+		private final long length;
+
+		private final int blocks;
+
+		private final File dataFile;
+
+		private final File bitmapFile;
+
+		private final FileChannel channel;
+
+		private final BitSet present;
+
+		private final BitSet fetching = new BitSet();
+
+		/**
+		 * Last fetch failure of each block, reported to every reader waiting for it. Cleared when the block is fetched again
+		 */
+		private final Map<Integer, IOException> failures = new ConcurrentHashMap<Integer, IOException>();
+
+		/**
+		 * Number of open streams. Guarded by files
+		 */
+		private int users;
+
+		private volatile long lastAccess;
+
+		@SuppressWarnings("resource")
+		private BlockFile(String key, long length, long lastAccess) throws IOException {
+			this.key = key;
+			this.length = length;
+			this.blocks = (int) ((length + blockSize - 1) / blockSize);
+			this.lastAccess = lastAccess;
+			this.dataFile = new File(cacheDir, key + ".data");
+			this.bitmapFile = new File(cacheDir, key + ".bitmap");
+			this.present = bitmapFile.exists() ? BitSet.valueOf(FileUtils.readFileToByteArray(bitmapFile)) : new BitSet(blocks);
+			RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+			if (raf.length() != length) {
+				// sparse where the file system supports it
+				raf.setLength(length);
+			}
+			this.channel = raf.getChannel();
+		}
+
+		private long getCachedBytes() {
+			synchronized (this) {
+				long ret = (long) present.cardinality() * blockSize;
+				if (blocks > 0 && present.get(blocks - 1)) {
+					ret -= (long) blocks * blockSize - length;
+				}
+				return ret;
+			}
+		}
+
+		private long blockStart(int block) {
+			return (long) block * blockSize;
+		}
+
+		private long blockEnd(int block) {
+			return Math.min(length, blockStart(block + 1)) - 1;
+		}
+
+		/**
+		 * Start fetching the missing blocks starting at <code>block</code> if they are not being fetched yet
+		 */
+		private synchronized void fetchAsync(int block, final RangeSource source) {
+			if (block >= blocks || present.get(block) || fetching.get(block)) {
+				return;
+			}
+			failures.remove(block);
+			final int first = block;
+			int last = block;
+			while (last + 1 < blocks && last + 1 - first < MAX_BLOCKS_PER_REQUEST && !present.get(last + 1) && !fetching.get(last + 1)) {
+				last++;
+			}
+			fetching.set(first, last + 1);
+			final int lastBlock = last;
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					fetch(first, lastBlock, source);
+				}
+			});
+		}
+
+		private void fetch(int first, int last, RangeSource source) {
+			LOG.debug("Fetching blocks " + first + "-" + last + " of '" + key + "'");
+			int block = first;
+			InputStream is = null;
+			try {
+				is = source.open(blockStart(first), blockEnd(last));
+				for (; block <= last; block++) {
+					byte[] data = new byte[(int) (blockEnd(block) - blockStart(block) + 1)];
+					IOUtils.readFully(is, data);
+					ByteBuffer buffer = ByteBuffer.wrap(data);
+					long position = blockStart(block);
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+					// the block must be on disk before the bitmap says it's there
+					channel.force(false);
+					synchronized (this) {
+						present.set(block);
+						fetching.clear(block);
+						writeBitmap();
+						// counted before the readers are woken up, so the size is right as soon as they read the block
+						size.addAndGet(data.length);
+						notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				LOG.warn("Blocks " + block + "-" + last + " of '" + key + "' couldn't be fetched: " + e.getMessage());
+				synchronized (this) {
+					for (; block <= last; block++) {
+						fetching.clear(block);
+						failures.put(block, e);
+					}
+					notifyAll();
+				}
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+			evict();
+		}
+
+		/**
+		 * Replaces the bitmap atomically, so after a crash it's either the previous one or the new one
+		 */
+		private void writeBitmap() throws IOException {
+			File tmpFile = new File(cacheDir, bitmapFile.getName() + ".tmp");
+			FileOutputStream out = new FileOutputStream(tmpFile);
+			try {
+				out.write(present.toByteArray());
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), bitmapFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/**
+		 * Wait until the block is present, fetching it if necessary.
+		 */
+		private synchronized void ensure(int block, RangeSource source) throws IOException {
+			lastAccess = System.currentTimeMillis();
+			fetchAsync(block, source);
+			while (!present.get(block)) {
+				// not removed, so every reader waiting for this fetch gets the failure instead of waiting forever
+				IOException failure = failures.get(block);
+				if (failure != null) {
+					throw failure;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for block " + block + " of '" + key + "'");
+				}
+			}
+		}
+
+		private int read(long position, byte[] b, int off, int len) throws IOException {
+			return channel.read(ByteBuffer.wrap(b, off, len), position);
+		}
+
+		private void delete() {
+			IOUtils.closeQuietly(channel);
+			FileUtils.deleteQuietly(dataFile);
+			FileUtils.deleteQuietly(bitmapFile);
+		}
+	}
+
+	private final class BlockInputStream extends InputStream {
+
+		private final BlockFile blockFile;
+
+		private final String name;
+
+		private final RangeSource source;
+
+		private long position;
+
+		private boolean closed;
+
+		private BlockInputStream(BlockFile blockFile, String name, RangeSource source, long offset) {
+			this.blockFile = blockFile;
+			this.name = name;
+			this.source = source;
+			this.position = offset;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (position >= blockFile.length) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			int block = (int) (position / blockSize);
+			blockFile.ensure(block, source);
+			// read ahead so the next block is (hopefully) ready when we get there
+			blockFile.fetchAsync(block + 1, source);
+
+			int count = (int) Math.min(len, blockFile.blockEnd(block) - position + 1);
+			int read = blockFile.read(position, b, off, count);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0, Math.min(n, blockFile.length - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			LOG.debug("Closed '" + name + "' at byte " + position);
+			synchronized (files) {
+				blockFile.users--;
+			}
+			evict();
+		}
+	}
+}
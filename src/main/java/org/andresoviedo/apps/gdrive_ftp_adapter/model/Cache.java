@@ -7,6 +7,11 @@ import org.springframework.dao.IncorrectResultSizeDataAccessException;
 
 public interface Cache {
 
+	/**
+	 * Prefix of the ids of the placeholders of the files not yet uploaded to google drive
+	 */
+	public static final String PENDING_ID_PREFIX = "pending-";
+
 	public abstract GFile getFile(String id);
 
 	public abstract List<GFile> getFiles(String folderId);
@@ -22,16 +27,30 @@ public interface Cache {
 	 */
 	public abstract GFile getFileByName(String parentId, String filename) throws IncorrectResultSizeDataAccessException;
 
+	/**
+	 * @return any file with the specified content or <code>null</code> if there is none
+	 */
+	public abstract GFile getFileByMd5(String md5Checksum, long length);
+
 	public abstract void addOrUpdateFile(GFile rootFile);
 
 	public abstract boolean updateFile(GFile file);
 
+	/**
+	 * Store the download url (or export link) resolved for the file so next downloads don't have to ask for it again
+	 */
+	public abstract void updateDownloadUrl(GFile file);
+
 	public abstract int deleteFile(String id);
 
 	public abstract long getRevision();
 
 	public abstract List<String> getAllFolderByRevision(long i);
 
+	/**
+	 * Replace the childs of the folder with the ones listed in google drive. Placeholders of the files not yet uploaded are kept,
+	 * google drive doesn't know them
+	 */
 	public abstract void updateChilds(GFile file, List<GFile> newChilds);
 
 }
\ No newline at end of file
@@ -0,0 +1,441 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Content addressed disk cache of the files downloaded from google drive.
+ * <p>
+ * Files are stored once per content, so the same file in different folders takes space only once. Regular files are keyed by
+ * their md5 checksum. Google documents have no checksum, so their exports are keyed by id and modification date (every change of
+ * the document changes its modification date) and they are also invalidated by the changes feed. The index is stored in a sqlite
+ * database so the cache survives restarts.
+ *
+ * @author andresoviedo
+ */
+public final class ContentCache {
+
+	private static final Log LOG = LogFactory.getLog(ContentCache.class);
+
+	private static final String TABLE_CONTENT = "content";
+
+	private final File cacheDir;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	/**
+	 * Max bytes stored in the cache. 0 means disabled
+	 */
+	private final long maxSize;
+
+	/**
+	 * Files bigger than this are not cached
+	 */
+	private final long maxFileSize;
+
+	/**
+	 * Evict the least frequently used entries instead of the least recently used ones
+	 */
+	private final boolean lfu;
+
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Length of the cached exports by key, so listings don't query the index once per google document
+	 */
+	private final Map<String, Long> exportSizes = new ConcurrentHashMap<String, Long>();
+
+	public ContentCache(Properties configuration) {
+		String account = configuration.getProperty("account", "default");
+		maxSize = Long.parseLong(configuration.getProperty("content.cache.size", String.valueOf(1024L * 1024 * 1024)));
+		maxFileSize = Long.parseLong(configuration.getProperty("content.cache.maxFileSize", String.valueOf(maxSize / 4)));
+		lfu = "lfu".equalsIgnoreCase(configuration.getProperty("content.cache.eviction", "lru"));
+
+		cacheDir = new File("data" + File.separator + account + File.separator + "content");
+		if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+			throw new RuntimeException("Could not create content cache folder " + cacheDir.getAbsolutePath());
+		}
+
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("org.sqlite.JDBC");
+		dataSource.setUrl("jdbc:sqlite:file:" + new File(cacheDir, "index.db").getPath());
+		dataSource.setMaxWait(60000);
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.execute("create table if not exists " + TABLE_CONTENT
+				+ " (key text, length integer, lastAccess integer, hits integer, fileId text, primary key (key))");
+		try {
+			jdbcTemplate.queryForList("select fileId from " + TABLE_CONTENT + " limit 1");
+		} catch (DataAccessException e) {
+			LOG.info("Upgrading content cache index...");
+			jdbcTemplate.execute("alter table " + TABLE_CONTENT + " add column fileId text");
+		}
+		jdbcTemplate.execute("create index if not exists idx_content_fileId on " + TABLE_CONTENT + " (fileId)");
+
+		removeOrphans();
+		for (Map<String, Object> row : jdbcTemplate.queryForList("select key, length from " + TABLE_CONTENT + " where fileId is not null")) {
+			exportSizes.put((String) row.get("key"), ((Number) row.get("length")).longValue());
+		}
+		size.set(jdbcTemplate.queryForObject("select coalesce(sum(length),0) from " + TABLE_CONTENT, Long.class));
+		LOG.info("Content cache '" + cacheDir + "' loaded with " + size + " bytes (max " + maxSize + " bytes, eviction "
+				+ (lfu ? "lfu" : "lru") + ")");
+		evict();
+	}
+
+	/**
+	 * Remove unfinished downloads and index entries whose file was removed
+	 */
+	private void removeOrphans() {
+		for (File file : cacheDir.listFiles()) {
+			if (file.getName().endsWith(".tmp")) {
+				FileUtils.deleteQuietly(file);
+			}
+		}
+		for (String key : jdbcTemplate.queryForList("select key from " + TABLE_CONTENT, String.class)) {
+			if (!getContentFile(key).exists()) {
+				jdbcTemplate.update("delete from " + TABLE_CONTENT + " where key=?", key);
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * @return <code>true</code> if the file content can be stored in the cache
+	 */
+	public boolean accepts(GFile file) {
+		return isEnabled() && !file.isDirectory() && (isExport(file) || file.getMd5Checksum() != null) && file.getSize() <= maxFileSize;
+	}
+
+	/**
+	 * @return <code>true</code> if the content of the file is an export of a google document. Only google documents have no
+	 *         checksum
+	 */
+	public static boolean isExport(GFile file) {
+		return !file.isDirectory() && (GoogleDrive.isGoogleDocument(file) || (file.getMimeType() == null && file.getMd5Checksum() == null));
+	}
+
+	/**
+	 * @return the size of the cached export of the google document or 0 if it's not known yet
+	 */
+	public long getExportSize(GFile file) {
+		if (!isEnabled() || !isExport(file)) {
+			return 0;
+		}
+		Long ret = exportSizes.get(getKey(file));
+		return ret != null ? ret : 0;
+	}
+
+	/**
+	 * Remove the exports of the google document because it has changed (or it was removed)
+	 */
+	public void invalidate(String fileId) {
+		if (!isEnabled()) {
+			return;
+		}
+		for (String key : jdbcTemplate.queryForList("select key from " + TABLE_CONTENT + " where fileId=?", String.class, fileId)) {
+			remove(key);
+			LOG.debug("Invalidated export '" + key + "'");
+		}
+	}
+
+	static String getKey(GFile file) {
+		if (file.getMd5Checksum() != null) {
+			return file.getMd5Checksum();
+		}
+		return file.getId() + "-" + file.getLastModified();
+	}
+
+	private File getContentFile(String key) {
+		return new File(cacheDir, key);
+	}
+
+	/**
+	 * Get the cached content of the file. The entry is only valid if the checksum (or modification date) is the same as the
+	 * specified one, which should come from the metadata cache.
+	 *
+	 * @return the cached content or <code>null</code> if it's not cached
+	 */
+	public File get(GFile file) {
+		if (!accepts(file)) {
+			return null;
+		}
+		String key = getKey(file);
+		File contentFile = getContentFile(key);
+		if (!contentFile.exists()) {
+			// removed from disk, the entry doesn't count anymore
+			remove(key);
+			return null;
+		}
+		if (jdbcTemplate.update("update " + TABLE_CONTENT + " set lastAccess=?, hits=hits+1 where key=?", System.currentTimeMillis(),
+				key) == 0) {
+			return null;
+		}
+		LOG.debug("Content of '" + file.getName() + "' found in cache");
+		return contentFile;
+	}
+
+	/**
+	 * Store the content of the file while it's being read. The content is added to the cache when the stream is fully read. If
+	 * the stream is closed before the end, nothing is cached.
+	 *
+	 * @param file
+	 *            the file
+	 * @param content
+	 *            the full content of the file
+	 * @return the stream to read from
+	 */
+	public InputStream store(GFile file, InputStream content) {
+		if (!accepts(file)) {
+			return content;
+		}
+		try {
+			return new CachingInputStream(file, content);
+		} catch (IOException e) {
+			LOG.warn("Content of '" + file.getName() + "' won't be cached: " + e.getMessage());
+			return content;
+		}
+	}
+
+	/**
+	 * Move the already downloaded file into the cache.
+	 *
+	 * @return the cached file, or the same file if it couldn't be cached
+	 */
+	public File store(GFile file, File content) {
+		if (!accepts(file) || (file.getMd5Checksum() != null && !file.getMd5Checksum().equals(md5(content)))) {
+			return content;
+		}
+		String key = getKey(file);
+		File contentFile = getContentFile(key);
+		File tmpFile = null;
+		try {
+			// downloads are usually in another file system (java.io.tmpdir), so they are copied next to the cache first and then
+			// renamed, so the cache never has a half written file
+			tmpFile = File.createTempFile("content-", ".tmp", cacheDir);
+			Files.move(content.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmpFile.toPath(), contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn("Content of '" + file.getName() + "' won't be cached: " + e.getMessage());
+			if (content.exists()) {
+				FileUtils.deleteQuietly(tmpFile);
+				return content;
+			}
+			// already moved, it's removed on the next startup
+			return tmpFile;
+		}
+		commit(file, key, contentFile.length());
+		LOG.info("Content of '" + file.getName() + "' cached (" + contentFile.length() + " bytes)");
+		return contentFile;
+	}
+
+	/**
+	 * Indexes the content file. Synchronized with the eviction so the size can't drift when the same content is committed
+	 * concurrently
+	 */
+	private synchronized void commit(GFile file, String key, long length) {
+		long now = System.currentTimeMillis();
+		Long previous = jdbcTemplate.queryForObject("select coalesce(sum(length),0) from " + TABLE_CONTENT + " where key=?", Long.class, key);
+		jdbcTemplate.update("insert or replace into " + TABLE_CONTENT + " (key,length,lastAccess,hits,fileId) values(?,?,?,?,?)", key, length,
+				now, 1, isExport(file) ? file.getId() : null);
+		if (isExport(file)) {
+			exportSizes.put(key, length);
+		}
+		size.addAndGet(length - previous);
+		evict();
+	}
+
+	private synchronized void evict() {
+		while (size.get() > maxSize) {
+			List<String> keys = jdbcTemplate.queryForList("select key from " + TABLE_CONTENT
+					+ (lfu ? " order by hits, lastAccess limit 1" : " order by lastAccess limit 1"), String.class);
+			if (keys.isEmpty()) {
+				size.set(0);
+				return;
+			}
+			remove(keys.get(0));
+			LOG.debug("Evicted '" + keys.get(0) + "' from content cache");
+		}
+	}
+
+	private synchronized void remove(String key) {
+		List<Long> length = jdbcTemplate.queryForList("select length from " + TABLE_CONTENT + " where key=?", Long.class, key);
+		jdbcTemplate.update("delete from " + TABLE_CONTENT + " where key=?", key);
+		exportSizes.remove(key);
+		FileUtils.deleteQuietly(getContentFile(key));
+		if (!length.isEmpty()) {
+			size.addAndGet(-length.get(0));
+		}
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	private static String md5(File file) {
+		InputStream is = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			is = FileUtils.openInputStream(file);
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder ret = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Copies everything that is read to a temporary file, that is committed to the cache on EOF
+	 */
+	private final class CachingInputStream extends FilterInputStream {
+
+		private final GFile file;
+
+		private final File tmpFile;
+
+		private final OutputStream tmpOut;
+
+		private final MessageDigest digest;
+
+		private boolean finished;
+
+		private CachingInputStream(GFile file, InputStream in) throws IOException {
+			super(in);
+			this.file = file;
+			this.tmpFile = File.createTempFile("content-", ".tmp", cacheDir);
+			this.tmpOut = new FileOutputStream(tmpFile);
+			try {
+				this.digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) {
+				finish();
+			} else {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read == -1) {
+				finish();
+			} else {
+				write(b, off, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes must be cached too
+			byte[] buffer = new byte[(int) Math.min(n, 64 * 1024)];
+			int read = read(buffer, 0, buffer.length);
+			return read == -1 ? 0 : read;
+		}
+
+		private void write(byte[] b, int off, int len) {
+			if (finished) {
+				return;
+			}
+			try {
+				tmpOut.write(b, off, len);
+				digest.update(b, off, len);
+			} catch (IOException e) {
+				LOG.warn("Content of '" + file.getName() + "' won't be cached: " + e.getMessage());
+				discard();
+			}
+		}
+
+		private void finish() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			IOUtils.closeQuietly(tmpOut);
+			String md5 = toHex(digest.digest());
+			if (file.getMd5Checksum() != null && !file.getMd5Checksum().equals(md5)) {
+				LOG.warn("Checksum of '" + file.getName() + "' doesn't match. It won't be cached");
+				FileUtils.deleteQuietly(tmpFile);
+				return;
+			}
+			String key = getKey(file);
+			File contentFile = getContentFile(key);
+			FileUtils.deleteQuietly(contentFile);
+			if (tmpFile.renameTo(contentFile)) {
+				commit(file, key, contentFile.length());
+				LOG.info("Content of '" + file.getName() + "' cached (" + contentFile.length() + " bytes)");
+			} else {
+				FileUtils.deleteQuietly(tmpFile);
+			}
+		}
+
+		private void discard() {
+			finished = true;
+			IOUtils.closeQuietly(tmpOut);
+			FileUtils.deleteQuietly(tmpFile);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (!finished) {
+					discard();
+				}
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.TransferMetrics.Transfer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams the content of a remote file to the ftp client while it's being downloaded.
+ * <p>
+ * A background pump reads the http response into a bounded queue of chunks, so the remote connection is throttled when the ftp
+ * client is slower than google (backpressure). Closing this stream before the end (i.e. the client disconnects) stops the pump and
+ * closes the http response.
+ *
+ * @author andresoviedo
+ */
+public final class DownloadStream extends InputStream {
+
+	private static final Log LOG = LogFactory.getLog(DownloadStream.class);
+
+	private static final byte[] EOF = new byte[0];
+
+	private final InputStream source;
+
+	private final int chunkSize;
+
+	private final BlockingQueue<byte[]> chunks;
+
+	private final Transfer transfer;
+
+	private byte[] current;
+
+	private int position;
+
+	private volatile boolean closed;
+
+	private volatile IOException failure;
+
+	private Future<?> pump;
+
+	/**
+	 * @param source
+	 *            the remote content
+	 * @param chunkSize
+	 *            size of each buffered chunk
+	 * @param maxChunks
+	 *            max number of chunks buffered before the pump blocks
+	 * @param transfer
+	 *            metrics for this transfer
+	 */
+	public DownloadStream(InputStream source, int chunkSize, int maxChunks, Transfer transfer) {
+		this.source = source;
+		this.chunkSize = chunkSize;
+		this.chunks = new ArrayBlockingQueue<byte[]>(maxChunks);
+		this.transfer = transfer;
+	}
+
+	DownloadStream start(ExecutorService executor) {
+		pump = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				pump();
+			}
+		});
+		return this;
+	}
+
+	private void pump() {
+		boolean completed = false;
+		try {
+			while (!closed) {
+				byte[] buffer = new byte[chunkSize];
+				int read = IOUtils.read(source, buffer);
+				if (read == 0) {
+					completed = true;
+					break;
+				}
+				transfer.onBytes(read);
+				if (read < buffer.length) {
+					byte[] last = new byte[read];
+					System.arraycopy(buffer, 0, last, 0, read);
+					buffer = last;
+				}
+				if (!put(buffer)) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.debug("Download pump interrupted");
+		} catch (IOException e) {
+			if (!closed) {
+				failure = e;
+			}
+		} finally {
+			IOUtils.closeQuietly(source);
+			transfer.end(completed);
+			try {
+				put(EOF);
+			} catch (InterruptedException e) {
+				// the reader is gone
+			}
+		}
+	}
+
+	/**
+	 * Blocks until there is room for the chunk or the stream is closed.
+	 */
+	private boolean put(byte[] chunk) throws InterruptedException {
+		while (!closed) {
+			if (chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean fill() throws IOException {
+		if (current == EOF) {
+			return false;
+		}
+		if (current != null && position < current.length) {
+			return true;
+		}
+		try {
+			current = chunks.take();
+			position = 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for download");
+		}
+		if (current == EOF) {
+			if (failure != null) {
+				throw failure;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current != null && current != EOF ? current.length - position : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		chunks.clear();
+		if (pump != null) {
+			pump.cancel(true);
+		}
+		// unblock the pump if it's waiting for the network
+		IOUtils.closeQuietly(source);
+	}
+}
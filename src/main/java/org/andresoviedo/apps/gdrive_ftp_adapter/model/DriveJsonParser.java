@@ -0,0 +1,254 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GChange;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.util.DateTime;
+
+/**
+ * Parses the pages of the file listings and the changes of google drive with the streaming parser of jackson, straight into
+ * {@link GFile} and {@link GChange}. The model of the client library (File, ParentReference, Labels, DateTime...) is not built, so
+ * a page of 1000 files is 1000 objects and not tens of thousands. The files must be the same
+ * {@link GFile#create(com.google.api.services.drive.model.File)} gives. Unknown fields are skipped.
+ *
+ * @author andresoviedo
+ */
+final class DriveJsonParser {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+	private DriveJsonParser() {
+	}
+
+	private interface ItemParser<T> {
+		T parse(JsonParser parser) throws IOException;
+	}
+
+	private static final ItemParser<GFile> FILE_PARSER = new ItemParser<GFile>() {
+		@Override
+		public GFile parse(JsonParser parser) throws IOException {
+			return parseFile(parser);
+		}
+	};
+
+	private static final ItemParser<GChange> CHANGE_PARSER = new ItemParser<GChange>() {
+		@Override
+		public GChange parse(JsonParser parser) throws IOException {
+			return parseChange(parser);
+		}
+	};
+
+	/**
+	 * Parses a page of <code>files.list</code> and closes the stream.
+	 *
+	 * @param items
+	 *            where the files are added
+	 * @return the token of the next page or <code>null</code> if it's the last one
+	 */
+	static String parseFileList(InputStream in, List<GFile> items) throws IOException {
+		return parsePage(in, FILE_PARSER, items);
+	}
+
+	/**
+	 * Parses a page of <code>changes.list</code> and closes the stream.
+	 *
+	 * @param items
+	 *            where the changes are added
+	 * @return the token of the next page or <code>null</code> if it's the last one
+	 */
+	static String parseChangeList(InputStream in, List<GChange> items) throws IOException {
+		return parsePage(in, CHANGE_PARSER, items);
+	}
+
+	private static <T> String parsePage(InputStream in, ItemParser<T> itemParser, List<T> items) throws IOException {
+		JsonParser parser = JSON_FACTORY.createParser(in);
+		try {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			String nextPageToken = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						items.add(itemParser.parse(parser));
+					}
+				} else if ("nextPageToken".equals(field) && value == JsonToken.VALUE_STRING) {
+					nextPageToken = parser.getText();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return nextPageToken != null && nextPageToken.length() > 0 ? nextPageToken : null;
+		} finally {
+			parser.close();
+		}
+	}
+
+	private static GChange parseChange(JsonParser parser) throws IOException {
+		long id = 0;
+		String fileId = null;
+		boolean deleted = false;
+		GFile file = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (value == JsonToken.VALUE_NULL) {
+				continue;
+			}
+			switch (field) {
+			case "id":
+				// int64 are strings in google apis
+				id = Long.parseLong(parser.getText());
+				break;
+			case "fileId":
+				fileId = parser.getText();
+				break;
+			case "deleted":
+				deleted = parser.getBooleanValue();
+				break;
+			case "file":
+				expect(parser, value, JsonToken.START_OBJECT);
+				file = parseFile(parser);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+		return new GChange(id, fileId, deleted, file);
+	}
+
+	/**
+	 * Parses the object the parser is at, up to its end
+	 */
+	private static GFile parseFile(JsonParser parser) throws IOException {
+		String id = null;
+		String title = null;
+		String originalFilename = null;
+		String mimeType = null;
+		String md5Checksum = null;
+		String downloadUrl = null;
+		Map<String, String> exportLinks = null;
+		long modifiedDate = 0;
+		long lastViewedByMeDate = 0;
+		long fileSize = 0;
+		Set<String> parents = new HashSet<String>();
+		boolean trashed = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (value == JsonToken.VALUE_NULL) {
+				continue;
+			}
+			switch (field) {
+			case "id":
+				id = parser.getText();
+				break;
+			case "title":
+				title = parser.getText();
+				break;
+			case "originalFilename":
+				originalFilename = parser.getText();
+				break;
+			case "mimeType":
+				mimeType = parser.getText();
+				break;
+			case "md5Checksum":
+				md5Checksum = parser.getText();
+				break;
+			case "downloadUrl":
+				downloadUrl = parser.getText();
+				break;
+			case "modifiedDate":
+				modifiedDate = DateTime.parseRfc3339(parser.getText()).getValue();
+				break;
+			case "lastViewedByMeDate":
+				lastViewedByMeDate = DateTime.parseRfc3339(parser.getText()).getValue();
+				break;
+			case "fileSize":
+				fileSize = Long.parseLong(parser.getText());
+				break;
+			case "exportLinks":
+				expect(parser, value, JsonToken.START_OBJECT);
+				exportLinks = new HashMap<String, String>();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String format = parser.getCurrentName();
+					parser.nextToken();
+					exportLinks.put(format, parser.getText());
+				}
+				break;
+			case "parents":
+				expect(parser, value, JsonToken.START_ARRAY);
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					parents.add(parseParent(parser));
+				}
+				break;
+			case "labels":
+				expect(parser, value, JsonToken.START_OBJECT);
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String label = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.VALUE_TRUE && "trashed".equals(label)) {
+						trashed = true;
+					}
+					parser.skipChildren();
+				}
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+
+		GFile ret = new GFile(title != null ? title : originalFilename);
+		ret.setId(id);
+		ret.setLastModified(modifiedDate);
+		ret.setLength(fileSize);
+		ret.setDirectory(FOLDER_MIME_TYPE.equals(mimeType));
+		ret.setMd5Checksum(md5Checksum);
+		ret.setMimeType(mimeType);
+		ret.setDownloadUrl(GFile.getDownloadUrl(mimeType, downloadUrl, exportLinks));
+		ret.setParents(parents);
+		ret.setLabels(trashed ? Collections.singleton("trashed") : Collections.<String> emptySet());
+		ret.setLastViewedByMeDate(lastViewedByMeDate);
+		return ret;
+	}
+
+	/**
+	 * @return id of the parent, "root" if it's the root folder
+	 */
+	private static String parseParent(JsonParser parser) throws IOException {
+		String id = null;
+		boolean root = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if ("id".equals(field) && value == JsonToken.VALUE_STRING) {
+				id = parser.getText();
+			} else if ("isRoot".equals(field)) {
+				root = value == JsonToken.VALUE_TRUE;
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return root ? "root" : id;
+	}
+
+	private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+		if (actual != expected) {
+			throw new JsonParseException("Expected " + expected + " but was " + actual, parser.getCurrentLocation());
+		}
+	}
+}
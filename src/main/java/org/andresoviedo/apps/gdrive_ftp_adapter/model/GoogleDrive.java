@@ -1,25 +1,34 @@
 package org.andresoviedo.apps.gdrive_ftp_adapter.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile.MIME_TYPE;
-import org.andresoviedo.util.program.ProgramUtils;
-import org.andresoviedo.util.program.ProgramUtils.RequestsPerSecondController;
+import org.andresoviedo.util.io.SpoolOutputStream;
+import org.andresoviedo.util.program.RateLimiter;
+import org.andresoviedo.util.program.SingleFlight;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,10 +40,13 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.FileContent;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.DateTime;
@@ -45,10 +57,8 @@ import com.google.api.services.drive.Drive.Changes;
 import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.Drive.Files.Update;
 import com.google.api.services.drive.DriveScopes;
-import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 
 /**
@@ -59,14 +69,13 @@ import com.google.api.services.drive.model.ParentReference;
  */
 public final class GoogleDrive {
 
-	@SuppressWarnings("unused")
 	private static final Log LOG = LogFactory.getLog(GFile.class);
 
 	/**
-	 * The google drive fixes the limit to 1000request/100second/user. We put 8 so
+	 * The google drive fixes the limit to 1000request/100second/user. We put 9 so
 	 * we don't work on the limits
 	 */
-	private static final int MAX_REQUESTS_PER_SECOND = 5;
+	private static final String DEFAULT_RATE_LIMIT = "9";
 
 	/**
 	 * Represents a directory or a simple file. This object encapsulates the Java File object.
@@ -150,7 +159,6 @@ public final class GoogleDrive {
 		 */
 		private long lastModified;
 
-		// TODO: Guardar el mimeType?
 		private String mimeType;
 		/**
 		 * Set of parent folder this file is in.
@@ -160,6 +168,11 @@ public final class GoogleDrive {
 		private transient java.io.File transferFile = null;
 
 		private transient URL downloadUrl;
+
+		/**
+		 * When the download url was obtained from google drive
+		 */
+		private transient long downloadUrlTime;
 		/**
 		 * Last time this file was viewed by the user
 		 * 
@@ -268,6 +281,10 @@ public final class GoogleDrive {
 			this.mimeType = mimeType;
 		}
 
+		public String getMimeType() {
+			return mimeType;
+		}
+
 		public long getRevision() {
 			return revision;
 		}
@@ -281,13 +298,22 @@ public final class GoogleDrive {
 		 *            the downloadUrl to set
 		 */
 		public void setDownloadUrl(URL downloadUrl) {
+			setDownloadUrl(downloadUrl, System.currentTimeMillis());
+		}
+
+		public void setDownloadUrl(URL downloadUrl, long downloadUrlTime) {
 			this.downloadUrl = downloadUrl;
+			this.downloadUrlTime = downloadUrl != null ? downloadUrlTime : 0;
 		}
 
 		public URL getDownloadUrl() {
 			return downloadUrl;
 		}
 
+		public long getDownloadUrlTime() {
+			return downloadUrlTime;
+		}
+
 		public java.io.File getTransferFile() {
 			return transferFile;
 		}
@@ -317,8 +343,10 @@ public final class GoogleDrive {
 			ret.setParents(getParents());
 
 			ret.setMimeType(mimeType);
+			ret.setDownloadUrl(getDownloadUrl(), getDownloadUrlTime());
 			ret.setExists(isExists());
 			ret.setLastViewedByMeDate(getLastViewedByMeDate());
+			ret.setLabels(getLabels());
 			return ret;
 		}
 
@@ -357,6 +385,8 @@ public final class GoogleDrive {
 			newFile.setLength(getFileSize(googleFile));
 			newFile.setDirectory(isDirectory(googleFile));
 			newFile.setMd5Checksum(googleFile.getMd5Checksum());
+			newFile.setMimeType(googleFile.getMimeType());
+			newFile.setDownloadUrl(getDownloadUrl(googleFile));
 			newFile.setParents(new HashSet<String>());
 			for (ParentReference ref : googleFile.getParents()) {
 				if (ref.getIsRoot()) {
@@ -411,6 +441,47 @@ public final class GoogleDrive {
 
 		}
 
+		/**
+		 * @return the url to download the content of the file. For google documents it's the export link of the equivalent office
+		 *         format. <code>null</code> if the file can't be downloaded (i.e. folders or drawings)
+		 */
+		private static URL getDownloadUrl(File googleFile) {
+			return getDownloadUrl(googleFile.getMimeType(), googleFile.getDownloadUrl(), googleFile.getExportLinks());
+		}
+
+		/**
+		 * @see #getDownloadUrl(File)
+		 */
+		static URL getDownloadUrl(String mimeType, String downloadUrl, Map<String, String> exportLinks) {
+			String url;
+			if (mimeType == null) {
+				url = downloadUrl;
+			} else {
+				switch (mimeType) {
+				case "application/vnd.google-apps.spreadsheet":
+					url = exportLinks != null ? exportLinks.get("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet")
+							: null;
+					// file.getExportLinks().get("application/pdf")
+					break;
+				case "application/vnd.google-apps.document":
+					url = exportLinks != null ? exportLinks
+							.get("application/vnd.openxmlformats-officedocument.wordprocessingml.document") : null;
+					break;
+				default:
+					url = downloadUrl;
+				}
+			}
+			if (url == null || url.length() == 0) {
+				return null;
+			}
+			try {
+				return new URL(url);
+			} catch (MalformedURLException e) {
+				LOG.warn("Invalid download url '" + url + "': " + e.getMessage());
+				return null;
+			}
+		}
+
 		private static long getFileSize(File googleFile) {
 			return googleFile.getFileSize() == null ? 0 : googleFile.getFileSize();
 		}
@@ -438,6 +509,61 @@ public final class GoogleDrive {
 		}
 	}
 
+	/**
+	 * A change of the google drive changes feed
+	 */
+	public static class GChange {
+
+		private final long id;
+
+		private final String fileId;
+
+		private final boolean deleted;
+
+		private final GFile file;
+
+		public GChange(long id, String fileId, boolean deleted, GFile file) {
+			this.id = id;
+			this.fileId = fileId;
+			this.deleted = deleted;
+			this.file = file;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getFileId() {
+			return fileId;
+		}
+
+		/**
+		 * @return <code>true</code> if the file was deleted for ever. Trashed files are not deleted, they have the trashed label
+		 */
+		public boolean isDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * @return the file after the change or <code>null</code> if it was deleted
+		 */
+		public GFile getFile() {
+			return file;
+		}
+
+		@Override
+		public String toString() {
+			return "GChange [id=" + id + ", fileId=" + fileId + ", deleted=" + deleted + "]";
+		}
+	}
+
+	/**
+	 * Receives the items of a listing page by page, as soon as each page is parsed
+	 */
+	public interface PageConsumer<T> {
+		void accept(List<T> page);
+	}
+
 	private static final Log logger = LogFactory.getLog(GoogleDrive.class);
 
 	/**
@@ -461,23 +587,131 @@ public final class GoogleDrive {
 	/** Global instance of the HTTP transport. */
 	private final HttpTransport httpTransport;
 
+	/**
+	 * Pool of connections of the transport (<code>http.transport=pooled</code>, the default) or <code>null</code> if the
+	 * transport is the one of the jdk (<code>http.transport=net</code>)
+	 */
+	private final PooledHttpTransport connectionPool;
+
 	private Credential credential;
 
 	private Drive drive;
 
-	// restrict to 100/request per second (the rate limit is
-	// 100/second/user)
-	private final ProgramUtils.RequestsPerSecondController bandwidthController = new RequestsPerSecondController(
-			MAX_REQUESTS_PER_SECOND, TimeUnit.SECONDS.toMillis(1));
+	/**
+	 * Requests per second shared by all the sessions and background workers (<code>rate.limit</code>), allowing bursts of
+	 * <code>rate.burst</code> requests
+	 */
+	private final RateLimiter bandwidthController;
+
+	/**
+	 * When and how the failed requests are retried (<code>retry.*</code>)
+	 */
+	private final RetryPolicy retryPolicy;
+
+	/**
+	 * Size of each chunk buffered while streaming a download
+	 */
+	private static final int DOWNLOAD_CHUNK_SIZE = 64 * 1024;
+
+	private final int downloadBufferChunks;
+
+	private final ExecutorService downloadExecutor = Executors.newCachedThreadPool();
+
+	private final TransferMetrics downloadMetrics = new TransferMetrics("downloads");
+
+	/**
+	 * Files bigger than this are downloaded in concurrent segments (0 disables segmented downloads)
+	 */
+	private final long segmentedThreshold;
+
+	private final int segmentSize;
+
+	private final int segmentParallelism;
+
+	/**
+	 * Endpoint of the media uploads
+	 */
+	private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v2/files";
+
+	/**
+	 * Fields of the file resource used by {@link GFile#create(File)}. The rest (permissions, owners, thumbnails, links...) is most
+	 * of the json and it's not requested. Responses are gzipped by the client library already
+	 */
+	static final String FILE_FIELDS = "id,title,originalFilename,mimeType,modifiedDate,lastViewedByMeDate,fileSize,md5Checksum,"
+			+ "downloadUrl,exportLinks,parents(id,isRoot),labels/trashed";
+
+	/**
+	 * Max items per page of the listings and the changes
+	 */
+	private static final int MAX_RESULTS = 1000;
+
+	private final int uploadChunkSize;
+
+	private final ExecutorService uploadExecutor = Executors.newCachedThreadPool();
+
+	private final TransferMetrics uploadMetrics = new TransferMetrics("uploads");
+
+	private final UploadSessions uploadSessions;
+
+	/**
+	 * Metadata requests (mkdir, copy, patch, trash) of concurrent sessions are sent together in batches of this size, waiting at
+	 * most <code>batchDelay</code> millis for other requests
+	 */
+	private final int batchSize;
+
+	private final long batchDelay;
+
+	private RequestBatcher batcher;
+
+	/**
+	 * Max age of the download urls stored in the metadata cache. Older urls are requested again before downloading
+	 */
+	private final long downloadUrlMaxAge;
+
+	/**
+	 * Operations whose concurrent identical calls are coalesced into one request (<code>coalesce.operations</code>): list (by
+	 * folder) and get (by file, so also the download urls)
+	 */
+	private final Set<String> coalescedOperations;
+
+	private final SingleFlight<String, List<GFile>> listFlight = new SingleFlight<String, List<GFile>>("list");
+
+	private final SingleFlight<String, File> getFlight = new SingleFlight<String, File>("get");
 
-	public GoogleDrive(Properties configuration) {
+	public GoogleDrive(Properties configuration, UploadSessions uploadSessions) {
+		this.uploadSessions = uploadSessions;
+		retryPolicy = new RetryPolicy(configuration);
+		bandwidthController = new RateLimiter(Double.parseDouble(configuration.getProperty("rate.limit", DEFAULT_RATE_LIMIT)),
+				Integer.parseInt(configuration.getProperty("rate.burst", "10")),
+				Long.parseLong(configuration.getProperty("rate.aging", "10000")), TimeUnit.MILLISECONDS);
 		DATA_STORE_DIR = new java.io.File("data/google/" + configuration.getProperty("account", "default"));
+		downloadBufferChunks = Math.max(1,
+				Integer.parseInt(configuration.getProperty("download.buffer.size", String.valueOf(4 * 1024 * 1024))) / DOWNLOAD_CHUNK_SIZE);
+		segmentedThreshold = Long.parseLong(configuration.getProperty("download.segmented.threshold", String.valueOf(64 * 1024 * 1024)));
+		segmentSize = Integer.parseInt(configuration.getProperty("download.segmented.size", String.valueOf(8 * 1024 * 1024)));
+		segmentParallelism = Integer.parseInt(configuration.getProperty("download.segmented.parallelism", "4"));
+		uploadChunkSize = Integer.parseInt(configuration.getProperty("upload.chunk.size", String.valueOf(8 * 1024 * 1024)));
+		downloadUrlMaxAge = Long.parseLong(configuration.getProperty("download.url.maxAge", String.valueOf(TimeUnit.HOURS.toMillis(1))));
+		batchSize = Integer.parseInt(configuration.getProperty("batch.size", "50"));
+		batchDelay = Long.parseLong(configuration.getProperty("batch.delay", "20"));
+		coalescedOperations = new HashSet<String>();
+		for (String operation : configuration.getProperty("coalesce.operations", "list,get").split(",")) {
+			if (operation.trim().length() > 0) {
+				coalescedOperations.add(operation.trim());
+			}
+		}
 
 		try {
 			// initialize the data store factory
 			dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
 			// initialize the transport
-			httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+			if ("net".equals(configuration.getProperty("http.transport", "pooled"))) {
+				connectionPool = null;
+				httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+			} else {
+				connectionPool = new PooledHttpTransport(configuration);
+				httpTransport = connectionPool.getTransport();
+			}
 
 		} catch (Exception e) {
 			throw new RuntimeException("No se pudo inicializar la API de Google");
@@ -486,7 +720,7 @@ public final class GoogleDrive {
 	}
 
 	public long getLargestChangeId(long localLargestChangeId) {
-		return getLargestChangeIdImpl(localLargestChangeId, 3);
+		return getLargestChangeIdImpl(localLargestChangeId, retryPolicy.getBudget("changes"));
 	}
 
 	private void init() {
@@ -497,7 +731,10 @@ public final class GoogleDrive {
 
 			// set up global Drive instance
 			drive = new Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName(APPLICATION_NAME).build();
-			bandwidthController.start();
+			batcher = new RequestBatcher(drive, bandwidthController, batchSize, batchDelay);
+			if (connectionPool != null) {
+				connectionPool.warmUp(drive.getRootUrl());
+			}
 
 			logger.info("Google drive webservice client initialized.");
 		} catch (Exception e) {
@@ -529,59 +766,155 @@ public final class GoogleDrive {
 		return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
 	}
 
-	public List<Change> getAllChanges(Long startChangeId) {
-		return retrieveAllChangesImpl(startChangeId, 3);
-	}
-
-	public List<File> list(String folderId) {
-		return list_impl(folderId, 3);
+	/**
+	 * Gets the changes after <code>startChangeId</code>. Each page is parsed straight into {@link GChange} and given to the
+	 * consumer before the next one is requested, so only a page is in memory at once. A page that fails is retried alone.
+	 * 
+	 * @return number of changes
+	 */
+	public int getChanges(long startChangeId, PageConsumer<GChange> consumer) {
+		int ret = 0;
+		String pageToken = null;
+		do {
+			List<GChange> page = new ArrayList<GChange>();
+			pageToken = getChangesPage_impl(startChangeId, pageToken, page, retryPolicy.getBudget("changes"));
+			ret += page.size();
+			consumer.accept(page);
+		} while (pageToken.length() > 0);
+		return ret;
 	}
 
-	private List<File> list_impl(String id, int retry) {
+	/**
+	 * @return the token of the next page or an empty string if it's the last one
+	 */
+	private String getChangesPage_impl(long startChangeId, String pageToken, List<GChange> page, int retry) {
+		page.clear();
 		try {
-			List<File> childIds = new ArrayList<File>();
-			logger.trace("list(" + id + ") retry " + retry);
+			Changes.List request = drive.changes().list();
+			request.setIncludeSubscribed(false);
+			request.setIncludeDeleted(true);
+			request.setFields("items(id,fileId,deleted,file(" + FILE_FIELDS + ")),nextPageToken");
+			request.setMaxResults(MAX_RESULTS);
+			if (startChangeId > 0) {
+				request.setStartChangeId(startChangeId);
+			}
+			request.setPageToken(pageToken);
 
-			Files.List request = drive.files().list();
+			// control we are not exceeding number of requests/second
+			bandwidthController.acquire();
+			String ret = DriveJsonParser.parseChangeList(request.executeUnparsed().getContent(), page);
+			return ret != null ? ret : "";
+		} catch (Exception e) {
+			if (retryPolicy.backoff("changes", e, retry)) {
+				return getChangesPage_impl(startChangeId, pageToken, page, --retry);
+			}
+			throw new RuntimeException(e);
+		}
+	}
 
-			request.setQ("trashed = false and '" + id + "' in parents");
+	/**
+	 * @return the files of the folder or <code>null</code> if it doesn't exist. Concurrent listings of the same folder are done
+	 *         once
+	 */
+	public List<GFile> list(final String folderId) {
+		final List<GFile> ret = new ArrayList<GFile>();
+		final PageConsumer<GFile> collector = new PageConsumer<GFile>() {
+			@Override
+			public void accept(List<GFile> page) {
+				ret.addAll(page);
+			}
+		};
+		if (!coalescedOperations.contains("list")) {
+			return list(folderId, collector) ? ret : null;
+		}
+		List<GFile> shared = listFlight.execute(folderId, new Callable<List<GFile>>() {
+			@Override
+			public List<GFile> call() {
+				return list(folderId, collector) ? ret : null;
+			}
+		});
+		if (shared == null || shared == ret) {
+			return shared;
+		}
+		// listed by another caller, the files are modified by the callers (i.e. the revision) so each one gets its own
+		List<GFile> copy = new ArrayList<GFile>(shared.size());
+		for (GFile file : shared) {
+			copy.add((GFile) file.clone());
+		}
+		return copy;
+	}
 
-			do {
-				if (Thread.currentThread().isInterrupted()) {
-					throw new InterruptedException("Interrupted before fetching file metadata");
-				}
+	/**
+	 * Lists the folder. Each page is parsed straight into {@link GFile} and given to the consumer before the next one is
+	 * requested, so only a page is in memory at once. A page that fails is retried alone.
+	 * 
+	 * @return <code>false</code> if the folder doesn't exist (the pages already consumed, if it was deleted while listing it,
+	 *         must be discarded)
+	 */
+	public boolean list(String folderId, PageConsumer<GFile> consumer) {
+		String pageToken = null;
+		do {
+			List<GFile> page = new ArrayList<GFile>();
+			pageToken = listPage_impl(folderId, pageToken, page, retryPolicy.getBudget("list"));
+			if (pageToken == null) {
+				return false;
+			}
+			consumer.accept(page);
+		} while (pageToken.length() > 0);
+		return true;
+	}
 
-				// control we are not exceeding number of requests/second
-				bandwidthController.newRequest();
-				FileList files = request.execute();
+	/**
+	 * @return the token of the next page, an empty string if it's the last one or <code>null</code> if the folder doesn't exist
+	 */
+	private String listPage_impl(String id, String pageToken, List<GFile> page, int retry) {
+		page.clear();
+		try {
+			logger.trace("list(" + id + ") page " + pageToken + " retry " + retry);
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("Interrupted before fetching file metadata");
+			}
 
-				childIds.addAll(files.getItems());
-				request.setPageToken(files.getNextPageToken());
+			Files.List request = drive.files().list();
+			request.setFields("items(" + FILE_FIELDS + "),nextPageToken");
+			request.setMaxResults(MAX_RESULTS);
+			request.setQ("trashed = false and '" + id + "' in parents");
+			request.setPageToken(pageToken);
 
-			} while (request.getPageToken() != null && request.getPageToken().length() > 0);
-			return childIds;
-		} catch (GoogleJsonResponseException e) {
+			// control we are not exceeding number of requests/second
+			bandwidthController.acquire();
+			String ret = DriveJsonParser.parseFileList(request.executeUnparsed().getContent(), page);
+			return ret != null ? ret : "";
+		} catch (HttpResponseException e) {
 			if (e.getStatusCode() == 404) {
-				// TODO: y si nos borran la última página pasa por aquí?
 				return null;
 			}
+			if (retryPolicy.backoff("list", e, retry)) {
+				return listPage_impl(id, pageToken, page, --retry);
+			}
 			throw new RuntimeException(e);
 		} catch (Exception e) {
-			if (retry > 0) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
-				logger.info("retrying...");
-				return list_impl(id, --retry);
+			if (retryPolicy.backoff("list", e, retry)) {
+				return listPage_impl(id, pageToken, page, --retry);
 			}
 			throw new RuntimeException(e);
 		}
 	}
 
-	public File getFile(String fileId) {
-		return getFile_impl(fileId, 3);
+	/**
+	 * @return the file or <code>null</code> if it doesn't exist. Concurrent requests of the same file are done once and get the
+	 *         same instance, so it must not be modified
+	 */
+	public File getFile(final String fileId) {
+		if (!coalescedOperations.contains("get")) {
+			return getFile_impl(fileId, retryPolicy.getBudget("get"));
+		}
+		return getFlight.execute(fileId, new Callable<File>() {
+			@Override
+			public File call() {
+				return getFile_impl(fileId, retryPolicy.getBudget("get"));
+			}
+		});
 	}
 
 	private File getFile_impl(String fileId, int retry) {
@@ -589,8 +922,8 @@ public final class GoogleDrive {
 			logger.trace("getFile(" + fileId + ")");
 
 			// control we are not exceeding number of requests/second
-			bandwidthController.newRequest();
-			File file = drive.files().get(fileId).execute();
+			bandwidthController.acquire();
+			File file = drive.files().get(fileId).setFields(FILE_FIELDS).execute();
 
 			logger.trace("getFile(" + fileId + ") = " + file.getTitle());
 			return file;
@@ -598,45 +931,88 @@ public final class GoogleDrive {
 			if (e.getStatusCode() == 404) {
 				return null;
 			}
+			if (retryPolicy.backoff("get", e, retry)) {
+				return getFile_impl(fileId, --retry);
+			}
 			throw new RuntimeException(e);
 		} catch (Exception e) {
-			if (retry > 0) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
-				logger.info("retrying...");
+			if (retryPolicy.backoff("get", e, retry)) {
 				return getFile_impl(fileId, --retry);
 			}
 			throw new RuntimeException(e);
 		}
 	}
 
-	void getFileDownloadURL(GFile jfsgDriveFile) {
-		// get download URL
+	/**
+	 * Gets the metadata of many files with batch requests of up to {@link RequestBatcher#MAX_BATCH_SIZE} files, each one a single
+	 * request of the rate limit. Files whose request fails for other reason than not existing are requested again alone, with
+	 * retries.
+	 * 
+	 * @return the files by id, in the same order. Files that don't exist are <code>null</code>. Files that couldn't be requested
+	 *         are not in the map, so one failure doesn't lose the others
+	 */
+	public Map<String, File> getFiles(Collection<String> fileIds) {
+		logger.debug("getFiles(" + fileIds.size() + " files)");
+		List<String> ids = new ArrayList<String>(fileIds);
+		List<Files.Get> requests = new ArrayList<Files.Get>(ids.size());
 		try {
-			File googleFile = getFile(jfsgDriveFile.getId());
-			switch (googleFile.getMimeType()) {
-			case "application/vnd.google-apps.spreadsheet":
-				jfsgDriveFile.setDownloadUrl(new URL(googleFile.getExportLinks().get(
-						"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet")));
-				// file.getExportLinks().get("application/pdf")
-				break;
-			case "application/vnd.google-apps.document":
-				jfsgDriveFile.setDownloadUrl(new URL(googleFile.getExportLinks().get(
-						"application/vnd.openxmlformats-officedocument.wordprocessingml.document")));
-				break;
-			default:
-				if (googleFile != null && googleFile.getDownloadUrl() != null && googleFile.getDownloadUrl().length() > 0) {
-					jfsgDriveFile.setDownloadUrl(new URL(googleFile.getDownloadUrl()));
+			for (String id : ids) {
+				requests.add(drive.files().get(id).setFields(FILE_FIELDS));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		Map<String, File> ret = new LinkedHashMap<String, File>();
+		List<RequestBatcher.Pending<File>> responses = batcher.executeAll(requests);
+		for (int i = 0; i < ids.size(); i++) {
+			try {
+				ret.put(ids.get(i), responses.get(i).get());
+			} catch (HttpResponseException e) {
+				if (e.getStatusCode() == 404) {
+					ret.put(ids.get(i), null);
 				} else {
-					throw new RuntimeException("No se ha podido obtener la URL de descarga del fichero '" + jfsgDriveFile.getName() + "'");
+					getFileAlone(ids.get(i), ret);
 				}
+			} catch (IOException e) {
+				getFileAlone(ids.get(i), ret);
 			}
-		} catch (MalformedURLException e) {
-			throw new RuntimeException(e);
 		}
+		return ret;
+	}
+
+	private void getFileAlone(String fileId, Map<String, File> files) {
+		try {
+			files.put(fileId, getFile(fileId));
+		} catch (RuntimeException e) {
+			logger.error("File '" + fileId + "' couldn't be requested: " + e.getMessage());
+		}
+	}
+
+	void getFileDownloadURL(GFile jfsgDriveFile) {
+		// get download URL
+		File googleFile = getFile(jfsgDriveFile.getId());
+		jfsgDriveFile.setMimeType(googleFile.getMimeType());
+		URL downloadUrl = GFile.getDownloadUrl(googleFile);
+		if (downloadUrl == null) {
+			throw new RuntimeException("No se ha podido obtener la URL de descarga del fichero '" + jfsgDriveFile.getName() + "'");
+		}
+		jfsgDriveFile.setDownloadUrl(downloadUrl);
+	}
+
+	/**
+	 * Makes sure the file has a download url. The url stored in the metadata cache is used unless it's older than
+	 * <code>download.url.maxAge</code> millis.
+	 * 
+	 * @return <code>true</code> if the url had to be requested to google drive, so the caller should store it
+	 */
+	public boolean resolveDownloadUrl(GFile jfsgDriveFile) {
+		if (jfsgDriveFile.getDownloadUrl() != null
+				&& System.currentTimeMillis() - jfsgDriveFile.getDownloadUrlTime() < downloadUrlMaxAge) {
+			return false;
+		}
+		logger.debug("Requesting download url of '" + jfsgDriveFile.getName() + "'...");
+		getFileDownloadURL(jfsgDriveFile);
+		return true;
 	}
 
 	/**
@@ -644,11 +1020,12 @@ public final class GoogleDrive {
 	 * 
 	 * @param file
 	 *            Drive File instance.
-	 * @return File containing the file's content if successful, {@code null} otherwise.
+	 * @param offset
+	 *            first byte to download. Only the requested bytes are transferred unless the file is a google document
+	 * @return File containing the file's content from <code>offset</code> if successful, {@code null} otherwise.
 	 */
-	public// TODO: Just pass the file id? name maybe could be printed in caller
-	java.io.File downloadFile(GFile jfsgDriveFile) {
-		logger.info("Downloading file '" + jfsgDriveFile.getName() + "'...");
+	public java.io.File downloadFile(GFile jfsgDriveFile, long offset) {
+		logger.info("Downloading file '" + jfsgDriveFile.getName() + "' from byte " + offset + "...");
 
 		java.io.File ret = null;
 
@@ -656,17 +1033,20 @@ public final class GoogleDrive {
 		java.io.File tmpFile = null;
 		FileOutputStream tempFos = null;
 		try {
-			getFileDownloadURL(jfsgDriveFile);
+			resolveDownloadUrl(jfsgDriveFile);
 
 			if (jfsgDriveFile.getDownloadUrl() == null) {
 				return null;
 			}
 
-			bandwidthController.newRequest();
-			HttpResponse resp = drive.getRequestFactory().buildGetRequest(new GenericUrl(jfsgDriveFile.getDownloadUrl())).execute();
+			HttpResponse resp = executeDownload(jfsgDriveFile, offset, -1);
 
 			tmpFile = java.io.File.createTempFile("gdrive-synch-", ".download");
 			is = resp.getContent();
+			if (offset > 0 && resp.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+				logger.info("Range not supported for '" + jfsgDriveFile.getName() + "'. Skipping " + offset + " bytes...");
+				IOUtils.skipFully(is, offset);
+			}
 			tempFos = new FileOutputStream(tmpFile);
 			IOUtils.copy(is, tempFos);
 			tempFos.flush();
@@ -674,18 +1054,229 @@ public final class GoogleDrive {
 			ret = tmpFile;
 			is.close();
 		} catch (Exception ex) {
-			ex.printStackTrace();
+			logger.error("Error downloading file '" + jfsgDriveFile.getName() + "'", ex);
 		} finally {
 			IOUtils.closeQuietly(is);
 			IOUtils.closeQuietly(tempFos);
+			if (ret == null && tmpFile != null) {
+				tmpFile.delete();
+			}
 		}
 		return ret;
 	}
 
+	/**
+	 * Download a file's content without spooling it to disk. The content is buffered in memory up to
+	 * <code>download.buffer.size</code> bytes while the caller consumes it.
+	 * 
+	 * @param jfsgDriveFile
+	 *            the file to download
+	 * @param offset
+	 *            first byte to download. Only the requested bytes are transferred unless the file is a google document
+	 * @return the stream with the file's content starting at <code>offset</code>. The caller must close it
+	 */
+	public InputStream downloadFileStream(GFile jfsgDriveFile, long offset) {
+		logger.info("Streaming file '" + jfsgDriveFile.getName() + "' from byte " + offset + "...");
+		try {
+			resolveDownloadUrl(jfsgDriveFile);
+
+			if (offset > 0 && jfsgDriveFile.getSize() > 0 && offset >= jfsgDriveFile.getSize()) {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+
+			TransferMetrics.Transfer transfer = downloadMetrics.start(jfsgDriveFile.getName());
+			if (segmentedThreshold > 0 && jfsgDriveFile.getSize() >= segmentedThreshold && !isGoogleDocument(jfsgDriveFile)) {
+				return new SegmentedDownload(createRangeSource(jfsgDriveFile), jfsgDriveFile.getSize(), offset, segmentSize,
+						segmentParallelism, retryPolicy, downloadExecutor, transfer).start();
+			}
+
+			HttpResponse resp = executeDownload(jfsgDriveFile, offset, -1);
+			InputStream ret = new DownloadStream(resp.getContent(), DOWNLOAD_CHUNK_SIZE, downloadBufferChunks, transfer)
+					.start(downloadExecutor);
+
+			if (offset > 0 && resp.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+				logger.info("Range not supported for '" + jfsgDriveFile.getName() + "'. Skipping " + offset + " bytes...");
+				try {
+					IOUtils.skipFully(ret, offset);
+				} catch (IOException e) {
+					IOUtils.closeQuietly(ret);
+					throw e;
+				}
+			}
+			return ret;
+		} catch (IOException e) {
+			throw new RuntimeException("No se pudo descargar el fichero " + jfsgDriveFile, e);
+		}
+	}
+
+	/**
+	 * @return source of byte ranges of the file. The download url is resolved on the first request
+	 */
+	public SegmentedDownload.RangeSource createRangeSource(final GFile jfsgDriveFile) {
+		return new SegmentedDownload.RangeSource() {
+			@Override
+			public InputStream open(long from, long to) throws IOException {
+				synchronized (jfsgDriveFile) {
+					resolveDownloadUrl(jfsgDriveFile);
+				}
+				HttpResponse resp = executeDownload(jfsgDriveFile, from, to);
+				if (resp.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+					resp.disconnect();
+					throw new IOException("Range " + from + "-" + to + " not honored for '" + jfsgDriveFile.getName() + "'");
+				}
+				return resp.getContent();
+			}
+		};
+	}
+
+	/**
+	 * Sends the download request for the specified byte range. The download url must be already resolved. If google drive rejects
+	 * the url (because it has expired) it's requested again and the download is retried once. Other failures are retried with the
+	 * retry policy (operation <code>download</code>).
+	 * 
+	 * @param jfsgDriveFile
+	 *            the file to download
+	 * @param from
+	 *            first byte
+	 * @param to
+	 *            last byte (inclusive) or -1 to download till the end
+	 * @return the response. Status is 206 if the range was honored. Exported google documents can't be ranged so for them the
+	 *         whole content is returned with status 200
+	 */
+	HttpResponse executeDownload(GFile jfsgDriveFile, long from, long to) throws IOException {
+		return executeDownload(jfsgDriveFile, from, to, retryPolicy.getBudget("download"), true);
+	}
+
+	/**
+	 * @param refresh
+	 *            if the url can still be refreshed (only once per download)
+	 */
+	private HttpResponse executeDownload(GFile jfsgDriveFile, long from, long to, int retry, boolean refresh) throws IOException {
+		try {
+			return executeDownload_impl(jfsgDriveFile, from, to);
+		} catch (IOException e) {
+			if (refresh && e instanceof HttpResponseException && isDownloadUrlRejected((HttpResponseException) e)) {
+				logger.info("Download url of '" + jfsgDriveFile.getName() + "' rejected (" + ((HttpResponseException) e).getStatusCode()
+						+ "). Refreshing it...");
+				synchronized (jfsgDriveFile) {
+					getFileDownloadURL(jfsgDriveFile);
+				}
+				return executeDownload(jfsgDriveFile, from, to, retry, false);
+			}
+			if (retryPolicy.backoff("download", e, retry)) {
+				return executeDownload(jfsgDriveFile, from, to, --retry, refresh);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the url has expired. A 403 is not, it's an exceeded rate limit or missing permissions
+	 */
+	private static boolean isDownloadUrlRejected(HttpResponseException e) {
+		switch (e.getStatusCode()) {
+		case HttpURLConnection.HTTP_UNAUTHORIZED:
+		case HttpURLConnection.HTTP_NOT_FOUND:
+		case HttpURLConnection.HTTP_GONE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private HttpResponse executeDownload_impl(GFile jfsgDriveFile, long from, long to) throws IOException {
+		HttpRequest request = drive.getRequestFactory().buildGetRequest(new GenericUrl(jfsgDriveFile.getDownloadUrl()));
+		if ((from > 0 || to >= 0) && !isGoogleDocument(jfsgDriveFile)) {
+			request.getHeaders().setRange("bytes=" + from + "-" + (to >= 0 ? String.valueOf(to) : ""));
+		}
+		// control we are not exceeding number of requests/second
+		bandwidthController.acquire();
+		return request.execute();
+	}
+
+	/**
+	 * @return <code>true</code> if the file is a google native document, so its content is an export and has no size
+	 */
+	static boolean isGoogleDocument(GFile jfsgDriveFile) {
+		return jfsgDriveFile.getMimeType() != null && jfsgDriveFile.getMimeType().startsWith("application/vnd.google-apps.");
+	}
+
+	public TransferMetrics getDownloadMetrics() {
+		return downloadMetrics;
+	}
+
+	public TransferMetrics getUploadMetrics() {
+		return uploadMetrics;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return bandwidthController;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @return the pool of http connections or <code>null</code> if the transport doesn't have one
+	 */
+	public PooledHttpTransport getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * @return calls and coalesced calls of the listings
+	 */
+	public SingleFlight<String, List<GFile>> getListFlight() {
+		return listFlight;
+	}
+
+	/**
+	 * @return calls and coalesced calls of the file metadata requests
+	 */
+	public SingleFlight<String, File> getFileFlight() {
+		return getFlight;
+	}
+
 	public File mkdir(String parentId, String filename) {
 		GFile jfsgFile = new GFile(Collections.singleton(parentId), filename);
 		jfsgFile.setDirectory(true);
-		return uploadFile(jfsgFile, 3);
+		return uploadFile(jfsgFile, null, retryPolicy.getBudget("mkdir"));
+	}
+
+	/**
+	 * Creates the new file as a server side copy of a file with the same content, so the content doesn't have to be uploaded.
+	 * 
+	 * @param sourceId
+	 *            the file with the same content
+	 * @param jfsgFile
+	 *            the new file (the parents must be set)
+	 * @return the new file or <code>null</code> if the source doesn't exist anymore
+	 */
+	public File copyFile(String sourceId, GFile jfsgFile) {
+		return copyFile(sourceId, jfsgFile, retryPolicy.getBudget("copy"));
+	}
+
+	private File copyFile(String sourceId, GFile jfsgFile, int retry) {
+		try {
+			logger.info("Copying file " + sourceId + " to '" + jfsgFile.getName() + "'...");
+			File file = batcher.execute(drive.files().copy(sourceId, newFileMetadata(jfsgFile)));
+			logger.info("File created " + file.getTitle() + " (" + file.getId() + ")");
+			return file;
+		} catch (HttpResponseException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			if (retryPolicy.backoff("copy", e, retry)) {
+				return copyFile(sourceId, jfsgFile, --retry);
+			}
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			if (retryPolicy.backoff("copy", e, retry)) {
+				return copyFile(sourceId, jfsgFile, --retry);
+			}
+			throw new RuntimeException("No se pudo copiar el fichero " + sourceId, e);
+		}
 	}
 
 	/**
@@ -706,81 +1297,269 @@ public final class GoogleDrive {
 	 * @return Inserted file metadata if successful, {@code null} otherwise.
 	 */
 	public File uploadFile(GFile jfsgFile) {
-		return uploadFile(jfsgFile, 3);
+		if (!jfsgFile.isDirectory() && jfsgFile.getTransferFile() != null) {
+			// the transfer file is unique for each upload (i.e. each entry of the upload queue), so only the same upload continues
+			// the saved session
+			java.io.File transferFile = jfsgFile.getTransferFile();
+			return uploadFileResumable(jfsgFile, null, transferFile.getName() + "/" + transferFile.length(),
+					retryPolicy.getBudget("upload"));
+		}
+		return uploadFile(jfsgFile, null, retryPolicy.getBudget("upload"));
+	}
+
+	/**
+	 * Uploads the content spooled by the client. Content that fits in a chunk is sent together with the metadata in a single
+	 * request, bigger content with a resumable upload session.
+	 */
+	public File uploadFile(GFile jfsgFile, SpoolOutputStream content) {
+		if (content.getLength() <= uploadChunkSize) {
+			return uploadFile(jfsgFile, content, retryPolicy.getBudget("upload"));
+		}
+		// the spooled content doesn't outlive this call, so only its own retries can continue the session
+		return uploadFileResumable(jfsgFile, content, UUID.randomUUID().toString(), retryPolicy.getBudget("upload"));
 	}
 
-	// TODO: upload with AbstractInputStream
-	private File uploadFile(GFile jfsgFile, int retry) {
+	/**
+	 * Uploads the transfer file with a resumable upload session. If an upload of the same content was interrupted (even before a
+	 * restart), it's continued from the bytes google drive already has.
+	 * 
+	 * @param contentId
+	 *            identifies the content being uploaded, the saved session is only continued if it was started for it
+	 */
+	private File uploadFileResumable(GFile jfsgFile, SpoolOutputStream content, String contentId, int retry) {
 		try {
-			File file = null;
-			FileContent mediaContent = null;
-			if (!jfsgFile.isDirectory() && jfsgFile.getTransferFile() != null) {
-				logger.info("Uploading file '" + jfsgFile.getTransferFile() + "'...");
-				mediaContent = new FileContent(java.nio.file.Files.probeContentType(jfsgFile.getTransferFile().toPath()),
-						jfsgFile.getTransferFile());
+			ResumableUpload upload = uploadFileStream(jfsgFile, -1, contentId);
+			InputStream is = content != null ? content.getInputStream() : new java.io.FileInputStream(jfsgFile.getTransferFile());
+			try {
+				IOUtils.skipFully(is, upload.getUploaded());
+				IOUtils.copyLarge(is, upload);
+			} catch (IOException e) {
+				upload.abort();
+				throw e;
+			} finally {
+				is.close();
+			}
+			upload.close();
+			return upload.getUploadedFile();
+		} catch (IOException e) {
+			if (retryPolicy.backoff("upload", e, retry)) {
+				return uploadFileResumable(jfsgFile, content, contentId, --retry);
+			}
+			throw new RuntimeException("No se pudo subir/actualizar el fichero " + jfsgFile, e);
+		}
+	}
+
+	/**
+	 * Starts a resumable upload of the file content. The content is sent in chunks of <code>upload.chunk.size</code> bytes while
+	 * it's written to the returned stream. The upload finishes when the stream is closed. The session is saved until it finishes,
+	 * so if the stream is aborted the upload can be continued later.
+	 * 
+	 * @param jfsgFile
+	 *            the new file (the parents must be set) or the existing file to update
+	 * @param offset
+	 *            first byte that will be written to the stream. If it's 0 a new upload is started and the saved session of the
+	 *            file is discarded. If it's greater than 0 the client is continuing its upload (REST or APPE), so the saved
+	 *            session of the file is continued
+	 * @return the stream where the content must be written or <code>null</code> if the offset is greater than 0 and there is no
+	 *         saved session that can be continued from it
+	 */
+	public ResumableUpload uploadFileStream(GFile jfsgFile, long offset) throws IOException {
+		return uploadFileStream(jfsgFile, offset, null);
+	}
+
+	/**
+	 * @param offset
+	 *            as in {@link #uploadFileStream(GFile, long)}, or -1 to continue the saved session from the bytes already
+	 *            uploaded (see {@link ResumableUpload#getUploaded()}) if it was started for the same content
+	 * @param contentId
+	 *            identifies the content of the upload, stored with the session
+	 */
+	private ResumableUpload uploadFileStream(GFile jfsgFile, long offset, String contentId) throws IOException {
+		final String target = UploadSessions.getTarget(jfsgFile);
+		String sessionUrl = null;
+		long uploaded = 0;
+		UploadSessions.Session session = offset != 0 ? uploadSessions.get(target) : null;
+		if (offset == 0) {
+			uploadSessions.remove(target);
+		} else if (session != null && offset < 0 && (contentId == null || !contentId.equals(session.getContentId()))) {
+			// a session of other content would mix both contents
+			logger.info("Saved upload of '" + jfsgFile.getName() + "' is of other content. Starting a new one...");
+			uploadSessions.remove(target);
+			session = null;
+		}
+		if (session != null) {
+			long acknowledged = ResumableUpload.getUploaded(drive.getRequestFactory(), bandwidthController, new GenericUrl(
+					session.getUrl()));
+			if (acknowledged >= 0 && (offset < 0 || acknowledged >= offset)) {
+				logger.info("Continuing upload of '" + jfsgFile.getName() + "' at byte " + acknowledged + "...");
+				sessionUrl = session.getUrl();
+				uploaded = acknowledged;
+			} else {
+				uploadSessions.remove(target);
 			}
+		}
+		if (offset > 0 && sessionUrl == null) {
+			logger.info("Upload of '" + jfsgFile.getName() + "' can't be continued at byte " + offset + " ("
+					+ (session != null ? session.getUploaded() : 0) + " bytes uploaded)");
+			return null;
+		}
+		if (sessionUrl == null) {
+			sessionUrl = createUploadSession(jfsgFile, retryPolicy.getBudget("upload"));
+			uploadSessions.add(target, sessionUrl, contentId);
+		}
+
+		ResumableUpload ret = new ResumableUpload(drive.getRequestFactory(), JSON_FACTORY.createJsonObjectParser(), new GenericUrl(
+				sessionUrl), uploaded, uploadChunkSize, retryPolicy, bandwidthController, uploadExecutor, uploadMetrics.start(jfsgFile
+				.getName()),
+				new ResumableUpload.Listener() {
+					@Override
+					public void onAcknowledged(long uploaded) {
+						uploadSessions.updateUploaded(target, uploaded);
+					}
+
+					@Override
+					public void onComplete(File uploadedFile) {
+						uploadSessions.remove(target);
+					}
+				});
+		if (offset > 0) {
+			// the client sends again what google drive already has
+			ret.discard(uploaded - offset);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the url of the new upload session
+	 */
+	private String createUploadSession(GFile jfsgFile, int retry) {
+		logger.info("Starting upload session of file '" + jfsgFile.getName() + "'...");
+		try {
+			String contentType = java.nio.file.Files.probeContentType(java.nio.file.Paths.get(jfsgFile.getName()));
+			HttpRequest request;
 			if (!jfsgFile.isExists()) {
-				// New file
-				file = new File();
-				if (jfsgFile.isDirectory()) {
-					file.setMimeType("application/vnd.google-apps.folder");
+				GenericUrl url = new GenericUrl(UPLOAD_URL);
+				url.put("uploadType", "resumable");
+				request = drive.getRequestFactory().buildPostRequest(url, new JsonHttpContent(JSON_FACTORY, newFileMetadata(jfsgFile)));
+			} else {
+				GenericUrl url = new GenericUrl(UPLOAD_URL + "/" + jfsgFile.getId());
+				url.put("uploadType", "resumable");
+				if (isConvertible(jfsgFile)) {
+					logger.info("Converting file to google docs format " + "because it was already in google docs format");
+					url.put("convert", true);
 				}
-				file.setTitle(jfsgFile.getName());
-				file.setModifiedDate(new DateTime(jfsgFile.getLastModified() != 0 ? jfsgFile.getLastModified() : System.currentTimeMillis()));
+				request = drive.getRequestFactory().buildPutRequest(url, new JsonHttpContent(JSON_FACTORY, new File()));
+			}
+			request.getHeaders().set("X-Upload-Content-Type", contentType != null ? contentType : "application/octet-stream");
 
-				List<ParentReference> newParents = new ArrayList<ParentReference>(1);
-				if (jfsgFile.getParents() != null) {
-					for (String parent : jfsgFile.getParents()) {
-						newParents.add(new ParentReference().setId(parent));
-					}
+			// control we are not exceeding number of requests/second
+			bandwidthController.acquire();
+			HttpResponse response = request.execute();
+			String location = response.getHeaders().getLocation();
+			response.disconnect();
+			if (location == null) {
+				throw new IOException("Upload session not returned for file '" + jfsgFile.getName() + "'");
+			}
+			return location;
+		} catch (IOException e) {
+			if (retryPolicy.backoff("upload", e, retry)) {
+				return createUploadSession(jfsgFile, --retry);
+			}
+			throw new RuntimeException("No se pudo subir/actualizar el fichero " + jfsgFile, e);
+		}
+	}
 
-				} else {
-					newParents = Collections.singletonList(new ParentReference().setId(jfsgFile.getCurrentParent().getId()));
+	private File newFileMetadata(GFile jfsgFile) {
+		File file = new File();
+		if (jfsgFile.isDirectory()) {
+			file.setMimeType("application/vnd.google-apps.folder");
+		}
+		file.setTitle(jfsgFile.getName());
+		file.setModifiedDate(new DateTime(jfsgFile.getLastModified() != 0 ? jfsgFile.getLastModified() : System.currentTimeMillis()));
+
+		List<ParentReference> newParents = new ArrayList<ParentReference>(1);
+		if (jfsgFile.getParents() != null) {
+			for (String parent : jfsgFile.getParents()) {
+				newParents.add(new ParentReference().setId(parent));
+			}
+
+		} else {
+			newParents = Collections.singletonList(new ParentReference().setId(jfsgFile.getCurrentParent().getId()));
+		}
+		file.setParents(newParents);
+		return file;
+	}
+
+	/**
+	 * @return <code>true</code> if the file is a google document, so the new content must be converted. The mime type comes from
+	 *         the metadata cache, the file is only requested if it's unknown
+	 */
+	private boolean isConvertible(GFile jfsgFile) {
+		String remoteMimeType = jfsgFile.getMimeType();
+		if (remoteMimeType == null) {
+			File remoteFile = getFile(jfsgFile.getId());
+			remoteMimeType = remoteFile != null ? remoteFile.getMimeType() : null;
+		}
+		if (remoteMimeType != null) {
+			final MIME_TYPE mimeType = GFile.MIME_TYPE.parse(remoteMimeType);
+			if (mimeType != null) {
+				switch (mimeType) {
+				case GOOGLE_DOC:
+				case GOOGLE_SHEET:
+					return true;
+				default:
+					break;
 				}
-				file.setParents(newParents);
+			}
+		}
+		return false;
+	}
+
+	private File uploadFile(GFile jfsgFile, SpoolOutputStream content, int retry) {
+		try {
+			File file = null;
+			InputStreamContent mediaContent = null;
+			if (!jfsgFile.isDirectory() && content != null) {
+				logger.info("Uploading file '" + jfsgFile.getName() + "' (" + content.getLength() + " bytes)...");
+				String contentType = java.nio.file.Files.probeContentType(java.nio.file.Paths.get(jfsgFile.getName()));
+				mediaContent = new InputStreamContent(contentType != null ? contentType : "application/octet-stream",
+						content.getInputStream());
+				mediaContent.setLength(content.getLength());
+			}
+			if (!jfsgFile.isExists()) {
+				// New file
+				file = newFileMetadata(jfsgFile);
 
 				if (mediaContent == null) {
-					// control we are not exceeding number of requests/second
-					bandwidthController.newRequest();
-					file = drive.files().insert(file).execute();
+					file = batcher.execute(drive.files().insert(file));
 				} else {
+					Files.Insert insertRequest = drive.files().insert(file, mediaContent);
+					// small content goes in the same request as the metadata
+					insertRequest.getMediaHttpUploader().setDirectUploadEnabled(true);
 					// control we are not exceeding number of requests/second
-					bandwidthController.newRequest();
-					file = drive.files().insert(file, mediaContent).execute();
+					bandwidthController.acquire();
+					file = insertRequest.execute();
 				}
 				logger.info("File created " + file.getTitle() + " (" + file.getId() + ")");
 			} else {
 				// Update file content
 				final Update updateRequest = drive.files().update(jfsgFile.getId(), null, mediaContent);
-				File remoteFile = getFile(jfsgFile.getId());
-				if (remoteFile != null) {
-					final MIME_TYPE mimeType = GFile.MIME_TYPE.parse(remoteFile.getMimeType());
-					if (mimeType != null) {
-						switch (mimeType) {
-						case GOOGLE_DOC:
-						case GOOGLE_SHEET:
-							logger.info("Converting file to google docs format " + "because it was already in google docs format");
-							updateRequest.setConvert(true);
-							break;
-						default:
-							break;
-						}
-					}
+				if (mediaContent != null) {
+					updateRequest.getMediaHttpUploader().setDirectUploadEnabled(true);
+				}
+				if (isConvertible(jfsgFile)) {
+					logger.info("Converting file to google docs format " + "because it was already in google docs format");
+					updateRequest.setConvert(true);
 				}
-				bandwidthController.newRequest();
+				bandwidthController.acquire();
 				file = updateRequest.execute();
 				logger.info("File updated " + file.getTitle() + " (" + file.getId() + ")");
 			}
 
 			return file;
 		} catch (IOException e) {
-			if (retry > 0) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
-				return uploadFile(jfsgFile, --retry);
+			if (retryPolicy.backoff(jfsgFile.isDirectory() ? "mkdir" : "upload", e, retry)) {
+				return uploadFile(jfsgFile, content, --retry);
 			}
 			throw new RuntimeException("No se pudo subir/actualizar el fichero " + jfsgFile, e);
 		}
@@ -798,17 +1577,12 @@ public final class GoogleDrive {
 			request.setFields("largestChangeId");
 
 			// control we are not exceeding number of requests/second
-			bandwidthController.newRequest();
+			bandwidthController.acquire();
 			ChangeList changes = request.execute();
 
 			ret = changes.getLargestChangeId();
 		} catch (IOException e) {
-			if (retry > 0) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
+			if (retryPolicy.backoff("changes", e, retry)) {
 				return getLargestChangeIdImpl(startLargestChangeId, --retry);
 			}
 			throw new RuntimeException(e);
@@ -816,55 +1590,8 @@ public final class GoogleDrive {
 		return ret;
 	}
 
-	/**
-	 * Retrieve a list of Change resources.
-	 * 
-	 * @param service
-	 *            Drive API service instance.
-	 * @param startChangeId
-	 *            ID of the change to start retrieving subsequent changes from or {@code null}.
-	 * @return List of Change resources.
-	 */
-	List<Change> retrieveAllChangesImpl(Long startChangeId, int retry) {
-		try {
-			List<Change> result = new ArrayList<Change>();
-			Changes.List request = drive.changes().list();
-			request.setIncludeSubscribed(false);
-			request.setIncludeDeleted(true);
-			if (startChangeId != null && startChangeId > 0) {
-				request.setStartChangeId(startChangeId);
-			}
-			do {
-				// control we are not exceeding number of requests/second
-				bandwidthController.newRequest();
-				ChangeList changes = request.execute();
-
-				result.addAll(changes.getItems());
-				request.setPageToken(changes.getNextPageToken());
-			} while (request.getPageToken() != null && request.getPageToken().length() > 0);
-
-			return result;
-			// } catch (GoogleJsonResponseException e) {
-			// if (e.getStatusCode() == 404) {
-			// return null;
-			// }
-			// throw new RuntimeException(e);
-		} catch (Exception e) {
-			if (retry > 0) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
-				logger.info("retrying...");
-				return retrieveAllChangesImpl(startChangeId, --retry);
-			}
-			throw new RuntimeException(e);
-		}
-	}
-
 	public File touchFile(String fileId, File patch) {
-		return this.touchFile(fileId, patch, 3);
+		return this.touchFile(fileId, patch, retryPolicy.getBudget("touch"));
 	}
 
 	private File touchFile(String fileId, File patch, int retry) {
@@ -873,34 +1600,27 @@ public final class GoogleDrive {
 			if (patch.getModifiedDate() != null) {
 				patchRequest.setSetModifiedDate(true);
 			}
-			// control we are not exceeding number of requests/second
-			bandwidthController.newRequest();
-			File updatedFile = patchRequest.execute();
+			File updatedFile = batcher.execute(patchRequest);
 			return updatedFile;
 		} catch (Exception e) {
-			if (retry > 0) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-					throw new RuntimeException(e1);
-				}
-				logger.info("retrying...");
-				touchFile(fileId, patch, --retry);
+			if (retryPolicy.backoff("touch", e, retry)) {
+				return touchFile(fileId, patch, --retry);
 			}
 			throw new RuntimeException(e);
 		}
 
 	}
 
-	public File trashFile(String fileId, int retry) {
+	public File trashFile(String fileId) {
+		return trashFile(fileId, retryPolicy.getBudget("trash"));
+	}
+
+	private File trashFile(String fileId, int retry) {
 		try {
 			logger.info("Deleting file " + fileId);
-			// control we are not exceeding number of requests/second
-			bandwidthController.newRequest();
-			return drive.files().trash(fileId).execute();
+			return batcher.execute(drive.files().trash(fileId));
 		} catch (IOException e) {
-			if (retry > 0) {
-				logger.info("retrying...");
+			if (retryPolicy.backoff("trash", e, retry)) {
 				return trashFile(fileId, --retry);
 			}
 			throw new RuntimeException(e);
@@ -0,0 +1,374 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+
+/**
+ * Http transport that keeps a pool of persistent connections, so the concurrent requests of the ftp sessions, the synchronization
+ * and the transfers don't open (and handshake) a new connection each:
+ * <ul>
+ * <li><code>http.maxConnections</code>: max open connections (50)</li>
+ * <li><code>http.maxConnectionsPerRoute</code>: max open connections to the same host (20)</li>
+ * <li><code>http.keepAlive</code>: millis an idle connection is kept open (60000), less if the server says so</li>
+ * <li><code>http.warmup</code>: connections opened at startup to google apis (4)</li>
+ * <li><code>http.socket.buffer</code>: size of the socket buffers (65536)</li>
+ * </ul>
+ * The certificates trusted are the ones of google, as {@link com.google.api.client.googleapis.javanet.GoogleNetHttpTransport}
+ * does.
+ *
+ * @author andresoviedo
+ */
+public final class PooledHttpTransport {
+
+	private static final Log LOG = LogFactory.getLog(PooledHttpTransport.class);
+
+	private final long keepAlive;
+
+	private final int socketBufferSize;
+
+	private final int warmup;
+
+	private final CountingConnManager connManager;
+
+	private final ApacheHttpTransport transport;
+
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * Connections being used by a request
+	 */
+	private final AtomicLong leased = new AtomicLong();
+
+	/**
+	 * Requests waiting for a connection
+	 */
+	private final AtomicLong pending = new AtomicLong();
+
+	/**
+	 * New connections opened
+	 */
+	private final AtomicLong connects = new AtomicLong();
+
+	/**
+	 * TLS handshakes done
+	 */
+	private final AtomicLong handshakes = new AtomicLong();
+
+	public PooledHttpTransport(Properties configuration) throws GeneralSecurityException, IOException {
+		keepAlive = Long.parseLong(configuration.getProperty("http.keepAlive", "60000"));
+		socketBufferSize = Integer.parseInt(configuration.getProperty("http.socket.buffer", "65536"));
+		warmup = Integer.parseInt(configuration.getProperty("http.warmup", "4"));
+
+		HttpParams params = new BasicHttpParams();
+		// idle connections are evicted before the server closes them
+		HttpConnectionParams.setStaleCheckingEnabled(params, false);
+		HttpConnectionParams.setSocketBufferSize(params, socketBufferSize);
+		ConnManagerParams.setMaxTotalConnections(params, Integer.parseInt(configuration.getProperty("http.maxConnections", "50")));
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(Integer.parseInt(configuration.getProperty("http.maxConnectionsPerRoute", "20"))));
+
+		SSLContext sslContext = SslUtils.getTlsSslContext();
+		SslUtils.initSslContext(sslContext, GoogleUtils.getCertificateTrustStore(), SslUtils.getPkixTrustManagerFactory());
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", new CountingPlainSocketFactory(), 80));
+		registry.register(new Scheme("https", new CountingSSLSocketFactory(sslContext), 443));
+		connManager = new CountingConnManager(params, registry);
+
+		DefaultHttpClient client = new DefaultHttpClient(connManager, params);
+		// requests are retried by the retry policy, here only once if a pooled connection was closed by the server meanwhile
+		client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(1, false));
+		client.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+		client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+				while (it.hasNext()) {
+					HeaderElement element = it.nextElement();
+					if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+						try {
+							return Math.min(keepAlive, TimeUnit.SECONDS.toMillis(Long.parseLong(element.getValue())));
+						} catch (NumberFormatException e) {
+							// the default one
+						}
+					}
+				}
+				return keepAlive;
+			}
+		});
+		transport = new ApacheHttpTransport(client);
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "http-evictor");
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		long period = Math.max(1000, keepAlive / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connManager.closeExpiredConnections();
+				connManager.closeIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug(PooledHttpTransport.this);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Opens <code>http.warmup</code> connections to the server at the same time (in the background), so the first requests don't
+	 * pay the connection and the handshake.
+	 *
+	 * @param url
+	 *            any url of the server. The response doesn't matter
+	 */
+	public void warmUp(final String url) {
+		if (warmup <= 0) {
+			return;
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(warmup, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "http-warmup");
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < warmup; i++) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					HttpRequest request = transport.createRequestFactory().buildHeadRequest(new GenericUrl(url));
+					request.setThrowExceptionOnExecuteError(false);
+					request.execute().disconnect();
+					return null;
+				}
+			});
+		}
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<Future<Void>> futures = new ArrayList<Future<Void>>();
+					for (Callable<Void> task : tasks.subList(1, tasks.size())) {
+						futures.add(executor.submit(task));
+					}
+					tasks.get(0).call();
+					for (Future<Void> future : futures) {
+						future.get();
+					}
+					LOG.info("Connections to " + url + " warmed up. " + PooledHttpTransport.this);
+				} catch (Exception e) {
+					LOG.warn("Warm up of connections to " + url + " failed: " + e.getMessage());
+				} finally {
+					executor.shutdown();
+				}
+			}
+		});
+	}
+
+	public long getLeased() {
+		return leased.get();
+	}
+
+	public long getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * @return connections open, leased or idle
+	 */
+	public int getOpen() {
+		return connManager.getConnectionsInPool();
+	}
+
+	public long getConnects() {
+		return connects.get();
+	}
+
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	public void shutdown() {
+		evictor.shutdownNow();
+		connManager.shutdown();
+	}
+
+	private void configure(Socket socket) throws IOException {
+		if (socketBufferSize > 0) {
+			// before connecting, so the tcp window is negotiated with it
+			socket.setReceiveBufferSize(socketBufferSize);
+			socket.setSendBufferSize(socketBufferSize);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PooledHttpTransport [open=" + getOpen() + ", leased=" + getLeased() + ", pending=" + getPending() + ", connects="
+				+ getConnects() + ", handshakes=" + getHandshakes() + "]";
+	}
+
+	private final class CountingConnManager extends ThreadSafeClientConnManager {
+
+		private CountingConnManager(HttpParams params, SchemeRegistry registry) {
+			super(params, registry);
+		}
+
+		@Override
+		public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+			final ClientConnectionRequest request = super.requestConnection(route, state);
+			return new ClientConnectionRequest() {
+				@Override
+				public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws InterruptedException,
+						ConnectionPoolTimeoutException {
+					pending.incrementAndGet();
+					try {
+						ManagedClientConnection ret = request.getConnection(timeout, unit);
+						leased.incrementAndGet();
+						return ret;
+					} finally {
+						pending.decrementAndGet();
+					}
+				}
+
+				@Override
+				public void abortRequest() {
+					request.abortRequest();
+				}
+			};
+		}
+
+		@Override
+		public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+			leased.decrementAndGet();
+			super.releaseConnection(conn, validDuration, timeUnit);
+		}
+	}
+
+	private final class CountingPlainSocketFactory implements SocketFactory {
+
+		private final PlainSocketFactory delegate = PlainSocketFactory.getSocketFactory();
+
+		@Override
+		public Socket createSocket() throws IOException {
+			Socket ret = delegate.createSocket();
+			configure(ret);
+			return ret;
+		}
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException, ConnectTimeoutException {
+			connects.incrementAndGet();
+			return delegate.connectSocket(sock, host, port, localAddress, localPort, params);
+		}
+
+		@Override
+		public boolean isSecure(Socket sock) {
+			return delegate.isSecure(sock);
+		}
+	}
+
+	private final class CountingSSLSocketFactory extends SSLSocketFactory {
+
+		private final HandshakeCompletedListener listener = new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				handshakes.incrementAndGet();
+			}
+		};
+
+		private CountingSSLSocketFactory(SSLContext sslContext) {
+			super(sslContext);
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			Socket ret = super.createSocket();
+			configure(ret);
+			((SSLSocket) ret).addHandshakeCompletedListener(listener);
+			return ret;
+		}
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException, ConnectTimeoutException {
+			connects.incrementAndGet();
+			return super.connectSocket(sock, host, port, localAddress, localPort, params);
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException,
+				UnknownHostException {
+			// tls over a proxy tunnel
+			Socket ret = super.createSocket(socket, host, port, autoClose);
+			((SSLSocket) ret).addHandshakeCompletedListener(listener);
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.program.RateLimiter;
+import org.andresoviedo.util.program.RateLimiter.Priority;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Groups the metadata requests made at the same time by different threads (i.e. ftp sessions) into google drive batch requests,
+ * so they cost a single round trip (and a single request of the rate limit).
+ * <p>
+ * The requests are sent when <code>maxSize</code> requests are waiting or <code>delay</code> millis after the first one was
+ * queued, whatever happens first. There is no sender thread: the caller that fills the batch sends it, or else the first caller
+ * of the batch when the delay expires. The batch is sent with the highest priority of its callers, so an interactive request is
+ * never rate limited as background work. Every caller blocks until its own response arrives. Failed requests throw an
+ * {@link HttpResponseException} with their own status code, as if they were executed alone.
+ *
+ * @see <a href="https://developers.google.com/drive/v2/web/batch">Batching requests</a>
+ * @author andresoviedo
+ */
+public final class RequestBatcher {
+
+	private static final Log LOG = LogFactory.getLog(RequestBatcher.class);
+
+	/**
+	 * Max requests google drive accepts in a batch
+	 */
+	public static final int MAX_BATCH_SIZE = 100;
+
+	private final Drive drive;
+
+	private final RateLimiter bandwidthController;
+
+	private final int maxSize;
+
+	private final long delay;
+
+	private final GenericUrl batchUrl;
+
+	private List<Pending<?>> queue = new ArrayList<Pending<?>>();
+
+	/**
+	 * A request sent in a batch
+	 */
+	public static final class Pending<T> {
+		private final AbstractGoogleJsonClientRequest<T> request;
+		/**
+		 * Priority of the caller
+		 */
+		private final Priority priority = RateLimiter.getPriority();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private T result;
+		private IOException failure;
+
+		private Pending(AbstractGoogleJsonClientRequest<T> request) {
+			this.request = request;
+		}
+
+		private void queue(BatchRequest batch) throws IOException {
+			request.queue(batch, new JsonBatchCallback<T>() {
+				@Override
+				public void onSuccess(T t, HttpHeaders responseHeaders) {
+					result = t;
+					done.countDown();
+				}
+
+				@Override
+				public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+					// the error goes as content so the retry policy can see its reason
+					fail(new HttpResponseException.Builder(e.getCode(), e.getMessage(), responseHeaders)
+							.setMessage(e.getCode() + " " + e.getMessage()).setContent(e.toString()).build());
+				}
+			});
+		}
+
+		/**
+		 * Waits for the response of the request
+		 *
+		 * @return the response
+		 * @throws IOException
+		 *             the error of this request or of the whole batch
+		 */
+		public T get() throws IOException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the batch");
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return result;
+		}
+
+		private void execute() {
+			try {
+				result = request.execute();
+				done.countDown();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void fail(IOException e) {
+			if (done.getCount() > 0) {
+				failure = e;
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            max requests per batch (google drive accepts up to 100). 1 disables batching
+	 * @param delay
+	 *            max millis a request waits for others to be batched with
+	 */
+	public RequestBatcher(Drive drive, RateLimiter bandwidthController, int maxSize, long delay) {
+		this.drive = drive;
+		this.bandwidthController = bandwidthController;
+		this.maxSize = Math.min(MAX_BATCH_SIZE, maxSize);
+		this.delay = delay;
+		this.batchUrl = new GenericUrl(drive.getRootUrl() + "batch/drive/v2");
+	}
+
+	/**
+	 * Executes the request, batched together with the requests of other threads.
+	 *
+	 * @return the response of this request
+	 */
+	public <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+		if (maxSize <= 1) {
+			// control we are not exceeding number of requests/second
+			bandwidthController.acquire();
+			return request.execute();
+		}
+		Pending<T> pending = new Pending<T>(request);
+		List<Pending<?>> batch = null;
+		synchronized (this) {
+			queue.add(pending);
+			if (queue.size() >= maxSize) {
+				batch = drain();
+				// the first caller doesn't have to wait anymore
+				notifyAll();
+			} else if (queue.size() == 1) {
+				batch = awaitBatch(queue);
+			}
+		}
+		if (batch != null) {
+			send(batch);
+		}
+		return pending.get();
+	}
+
+	/**
+	 * Waits for more requests to be batched with the one of the current thread, that was the first one.
+	 *
+	 * @return the batch to send or <code>null</code> if it was filled and sent by another caller
+	 */
+	private synchronized List<Pending<?>> awaitBatch(List<Pending<?>> batch) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		boolean interrupted = false;
+		long remaining;
+		while (queue == batch && (remaining = deadline - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			} catch (InterruptedException e) {
+				// the others are waiting for this caller to send the batch
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return queue == batch ? drain() : null;
+	}
+
+	/**
+	 * Executes the requests of a single caller (i.e. the metadata of many files) in batches of up to {@link #MAX_BATCH_SIZE}
+	 * requests. They are sent right away, without waiting for the requests of other threads. Each batch is a single request of the
+	 * rate limit.
+	 *
+	 * @return the requests, in the same order, already executed. Each one returns its own response or error
+	 */
+	public <T> List<Pending<T>> executeAll(List<? extends AbstractGoogleJsonClientRequest<T>> requests) {
+		List<Pending<T>> ret = new ArrayList<Pending<T>>(requests.size());
+		List<Pending<?>> batch = new ArrayList<Pending<?>>();
+		for (AbstractGoogleJsonClientRequest<T> request : requests) {
+			Pending<T> pending = new Pending<T>(request);
+			ret.add(pending);
+			batch.add(pending);
+			if (batch.size() == MAX_BATCH_SIZE) {
+				send(batch);
+				batch = new ArrayList<Pending<?>>();
+			}
+		}
+		send(batch);
+		return ret;
+	}
+
+	private synchronized List<Pending<?>> drain() {
+		List<Pending<?>> ret = queue;
+		queue = new ArrayList<Pending<?>>();
+		return ret;
+	}
+
+	private void send(List<Pending<?>> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Priority priority = batch.get(0).priority;
+		for (Pending<?> pending : batch) {
+			if (pending.priority.compareTo(priority) < 0) {
+				priority = pending.priority;
+			}
+		}
+		Priority previous = RateLimiter.setPriority(priority);
+		// an interrupted caller still sends the requests of the others
+		boolean interrupted = Thread.interrupted();
+		try {
+			// control we are not exceeding number of requests/second
+			bandwidthController.acquire();
+			if (batch.size() == 1) {
+				batch.get(0).execute();
+				return;
+			}
+			LOG.debug("Sending batch of " + batch.size() + " requests...");
+			BatchRequest batchRequest = drive.batch();
+			batchRequest.setBatchUrl(batchUrl);
+			for (Pending<?> pending : batch) {
+				pending.queue(batchRequest);
+			}
+			batchRequest.execute();
+		} catch (IOException e) {
+			LOG.warn("Batch of " + batch.size() + " requests failed: " + e.getMessage());
+			for (Pending<?> pending : batch) {
+				pending.fail(e);
+			}
+		} finally {
+			// nobody must be left waiting
+			for (Pending<?> pending : batch) {
+				pending.fail(new IOException("No response in batch"));
+			}
+			RateLimiter.setPriority(previous);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.TransferMetrics.Transfer;
+import org.andresoviedo.util.program.RateLimiter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.ObjectParser;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Uploads the content written by the ftp client to an already created google drive resumable upload session.
+ * <p>
+ * The content is sent in chunks of fixed size while the client is still writing, so at most 2 chunks are kept in memory (the one
+ * being sent and the one being filled). A chunk that fails is resumed from the last byte acknowledged by google drive instead of
+ * restarting the whole upload. The session outlives this stream, so an aborted upload can be continued later with a new stream
+ * starting at the bytes already acknowledged (see {@link #getUploaded(HttpRequestFactory, RateLimiter, GenericUrl)}).
+ *
+ * @see <a href="https://developers.google.com/drive/v2/web/manage-uploads#resumable">Resumable upload</a>
+ * @author andresoviedo
+ */
+public final class ResumableUpload extends OutputStream {
+
+	private static final Log LOG = LogFactory.getLog(ResumableUpload.class);
+
+	/**
+	 * Google drive requires all the chunks but the last one to be a multiple of this
+	 */
+	public static final int CHUNK_GRANULARITY = 256 * 1024;
+
+	/**
+	 * Status returned by google drive while the upload is not complete
+	 */
+	private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+	private static final Pattern RANGE = Pattern.compile("bytes=0-(\\d+)");
+
+	private final HttpRequestFactory requestFactory;
+
+	private final ObjectParser parser;
+
+	private final GenericUrl sessionUrl;
+
+	private final RetryPolicy retryPolicy;
+
+	private final RateLimiter rateLimiter;
+
+	private final ExecutorService executor;
+
+	private final Transfer transfer;
+
+	private final Listener listener;
+
+	private byte[] buffer;
+
+	private byte[] sending;
+
+	private int length;
+
+	/**
+	 * Bytes still to be discarded from what is written
+	 */
+	private long discard;
+
+	/**
+	 * Bytes acknowledged by google drive
+	 */
+	private long uploaded;
+
+	private Future<File> pending;
+
+	private File uploadedFile;
+
+	private boolean closed;
+
+	private IOException failure;
+
+	/**
+	 * Notified every time google drive acknowledges more bytes, so the progress can be saved
+	 */
+	public interface Listener {
+		void onAcknowledged(long uploaded);
+
+		void onComplete(File uploadedFile);
+	}
+
+	/**
+	 * @param requestFactory
+	 *            authorized request factory
+	 * @param parser
+	 *            parser of the file resource returned when the upload finishes
+	 * @param sessionUrl
+	 *            the upload session (location returned when the upload was started)
+	 * @param uploaded
+	 *            bytes already acknowledged by google drive. The first byte written to this stream is the next one
+	 * @param chunkSize
+	 *            size of the chunks. It's rounded to a multiple of {@link #CHUNK_GRANULARITY}
+	 * @param retryPolicy
+	 *            when a failed chunk is resumed (operation <code>upload.chunk</code>)
+	 * @param rateLimiter
+	 *            limiter of the requests to google drive, every chunk and status query is a request
+	 * @param executor
+	 *            executor where chunks are sent
+	 * @param transfer
+	 *            metrics for this transfer
+	 * @param listener
+	 *            the listener of the progress or <code>null</code>
+	 */
+	public ResumableUpload(HttpRequestFactory requestFactory, ObjectParser parser, GenericUrl sessionUrl, long uploaded, int chunkSize,
+			RetryPolicy retryPolicy, RateLimiter rateLimiter, ExecutorService executor, Transfer transfer, Listener listener) {
+		this.requestFactory = requestFactory;
+		this.parser = parser;
+		this.sessionUrl = sessionUrl;
+		this.uploaded = uploaded;
+		this.listener = listener;
+		this.retryPolicy = retryPolicy;
+		this.rateLimiter = rateLimiter;
+		this.executor = executor;
+		this.transfer = transfer;
+		int size = Math.max(1, chunkSize / CHUNK_GRANULARITY) * CHUNK_GRANULARITY;
+		this.buffer = new byte[size];
+		this.sending = new byte[size];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Upload already closed");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		if (discard > 0) {
+			int n = (int) Math.min(len, discard);
+			discard -= n;
+			off += n;
+			len -= n;
+		}
+		while (len > 0) {
+			if (length == buffer.length) {
+				sendChunk(false);
+			}
+			int n = Math.min(len, buffer.length - length);
+			System.arraycopy(b, off, buffer, length, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends the chunk in background. The previous chunk must have been acknowledged before, so google drive receives the content
+	 * in order.
+	 */
+	private void sendChunk(final boolean last) throws IOException {
+		waitPending();
+		final byte[] chunk = buffer;
+		buffer = sending;
+		sending = chunk;
+		final int chunkLength = length;
+		final long chunkStart = uploaded;
+		length = 0;
+		pending = executor.submit(new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				return send(chunk, chunkStart, chunkLength, last);
+			}
+		});
+	}
+
+	private void waitPending() throws IOException {
+		if (pending == null) {
+			return;
+		}
+		try {
+			uploadedFile = pending.get();
+		} catch (InterruptedException e) {
+			pending.cancel(true);
+			throw new InterruptedIOException("Upload interrupted");
+		} catch (ExecutionException e) {
+			transfer.end(false);
+			failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			throw failure;
+		} finally {
+			pending = null;
+		}
+	}
+
+	/**
+	 * Sends the chunk, resuming it from the last acknowledged byte if it fails.
+	 *
+	 * @return the uploaded file if this was the last chunk
+	 */
+	private File send(byte[] chunk, long chunkStart, int chunkLength, boolean last) throws IOException, InterruptedException {
+		String total = last ? String.valueOf(chunkStart + chunkLength) : "*";
+		int retry = retryPolicy.getBudget("upload.chunk");
+		int offset = 0;
+		while (true) {
+			try {
+				HttpContent content;
+				String contentRange;
+				if (offset < chunkLength) {
+					content = new ByteArrayContent(null, chunk, offset, chunkLength - offset);
+					contentRange = "bytes " + (chunkStart + offset) + "-" + (chunkStart + chunkLength - 1) + "/" + total;
+				} else {
+					content = new EmptyContent();
+					contentRange = "bytes */" + total;
+				}
+				HttpResponse response = execute(content, contentRange);
+				try {
+					if (response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+						File ret = complete(response, last);
+						acknowledge(chunkStart + chunkLength);
+						return ret;
+					}
+					offset = (int) (acknowledge(getAcknowledged(response)) - chunkStart);
+				} finally {
+					response.disconnect();
+				}
+				if (offset >= chunkLength && !last) {
+					return null;
+				}
+			} catch (IOException e) {
+				LOG.info("Chunk at byte " + (chunkStart + offset) + " failed (" + e.getMessage() + ")");
+				if (!retryPolicy.backoff("upload.chunk", e, retry--)) {
+					throw e;
+				}
+				offset = resume(chunkStart, total);
+				if (offset < 0) {
+					// google drive already has the whole content
+					File ret = queryUploadedFile(total);
+					acknowledge(chunkStart + chunkLength);
+					return ret;
+				}
+			}
+		}
+	}
+
+	private HttpResponse execute(HttpContent content, String contentRange) throws IOException {
+		return execute(requestFactory, rateLimiter, parser, sessionUrl, content, contentRange);
+	}
+
+	private static HttpResponse execute(HttpRequestFactory requestFactory, RateLimiter rateLimiter, ObjectParser parser,
+			GenericUrl sessionUrl, HttpContent content, String contentRange) throws IOException {
+		rateLimiter.acquire();
+		HttpRequest request = requestFactory.buildPutRequest(sessionUrl, content);
+		request.getHeaders().setContentRange(contentRange);
+		request.setParser(parser);
+		request.setFollowRedirects(false);
+		request.setThrowExceptionOnExecuteError(false);
+		return request.execute();
+	}
+
+	/**
+	 * @return the offset in the chunk from where to resume or -1 if the upload is already complete
+	 */
+	private int resume(long chunkStart, String total) throws IOException {
+		HttpResponse response = execute(new EmptyContent(), "bytes */" + total);
+		try {
+			if (response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+				if (response.isSuccessStatusCode()) {
+					return -1;
+				}
+				// i.e. 404 if the session has expired, it can't be resumed
+				throw new HttpResponseException(response);
+			}
+			return (int) Math.max(0, acknowledge(getAcknowledged(response)) - chunkStart);
+		} finally {
+			response.disconnect();
+		}
+	}
+
+	private File queryUploadedFile(String total) throws IOException {
+		HttpResponse response = execute(new EmptyContent(), "bytes */" + total);
+		try {
+			return complete(response, true);
+		} finally {
+			response.disconnect();
+		}
+	}
+
+	/**
+	 * @throws HttpResponseException
+	 *             if google drive rejected the chunk, so the retry policy knows if it's worth retrying
+	 */
+	private File complete(HttpResponse response, boolean last) throws IOException {
+		if (!response.isSuccessStatusCode()) {
+			throw new HttpResponseException(response);
+		}
+		if (!last) {
+			throw new IOException("Unexpected response " + response.getStatusCode() + " " + response.getStatusMessage());
+		}
+		return response.parseAs(File.class);
+	}
+
+	/**
+	 * @return number of bytes google drive has received according to the <code>Range</code> header
+	 */
+	private static long getAcknowledged(HttpResponse response) {
+		String range = response.getHeaders().getRange();
+		Matcher matcher = range != null ? RANGE.matcher(range) : null;
+		return matcher != null && matcher.matches() ? Long.parseLong(matcher.group(1)) + 1 : 0;
+	}
+
+	private synchronized long acknowledge(long acknowledged) {
+		if (acknowledged > uploaded) {
+			transfer.onBytes((int) (acknowledged - uploaded));
+		}
+		if (acknowledged != uploaded && listener != null) {
+			listener.onAcknowledged(acknowledged);
+		}
+		uploaded = acknowledged;
+		return acknowledged;
+	}
+
+	/**
+	 * Asks google drive how many bytes of the upload session it has received.
+	 * 
+	 * @return the bytes received or -1 if the session is not available anymore (expired or already completed)
+	 */
+	public static long getUploaded(HttpRequestFactory requestFactory, RateLimiter rateLimiter, GenericUrl sessionUrl)
+			throws IOException {
+		HttpResponse response = execute(requestFactory, rateLimiter, null, sessionUrl, new EmptyContent(), "bytes */*");
+		try {
+			return response.getStatusCode() == STATUS_RESUME_INCOMPLETE ? getAcknowledged(response) : -1;
+		} finally {
+			response.disconnect();
+		}
+	}
+
+	/**
+	 * Stops the upload without finishing it (i.e. the client connection was lost). The bytes in memory not sent yet are discarded
+	 * and the session is left open, so the upload can be continued from {@link #getUploaded()}.
+	 */
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (failure == null) {
+				waitPending();
+			}
+		} finally {
+			transfer.end(false);
+		}
+		LOG.info("Upload aborted at byte " + getUploaded());
+	}
+
+	public synchronized long getUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Sends the last chunk and waits until google drive confirms the upload.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (failure != null) {
+			throw failure;
+		}
+		if (discard > 0) {
+			throw new IOException("Upload closed before reaching the bytes already uploaded");
+		}
+		sendChunk(true);
+		waitPending();
+		transfer.end(true);
+		if (listener != null) {
+			listener.onComplete(uploadedFile);
+		}
+	}
+
+	/**
+	 * Discard the next bytes written to this stream because google drive already has them (i.e. a client resuming an upload from
+	 * an earlier offset)
+	 */
+	void discard(long bytes) {
+		this.discard = bytes;
+	}
+
+	/**
+	 * @return the uploaded file resource once the stream is closed
+	 */
+	public File getUploadedFile() {
+		return uploadedFile;
+	}
+}
@@ -0,0 +1,224 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Decides if a failed google drive request is retried and how long to wait before. The wait grows exponentially with the attempt
+ * (<code>retry.delay</code>, twice that, ... up to <code>retry.maxDelay</code> millis) and it's a random value below that limit
+ * ("full jitter"), so the requests that failed together (i.e. because the quota was exceeded) are not retried together. The
+ * <code>Retry-After</code> returned by google drive is always waited.
+ * <p>
+ * Only errors that can go away are retried: network errors, server errors (5xx), timeouts and exceeded rate limits. Each
+ * operation has its own number of retries (<code>retry.&lt;operation&gt;.budget</code>, <code>retry.budget</code> by default).
+ *
+ * @author andresoviedo
+ */
+public final class RetryPolicy {
+
+	private static final Log LOG = LogFactory.getLog(RetryPolicy.class);
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private final Properties configuration;
+
+	private final long baseDelay;
+
+	private final long maxDelay;
+
+	private final int defaultBudget;
+
+	private final ConcurrentMap<String, AtomicLong> retries = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+	public RetryPolicy(Properties configuration) {
+		this(configuration, Long.parseLong(configuration.getProperty("retry.delay", "500")), Long.parseLong(configuration
+				.getProperty("retry.maxDelay", "32000")), Integer.parseInt(configuration.getProperty("retry.budget", "3")));
+	}
+
+	/**
+	 * @param baseDelay
+	 *            max millis waited before the first retry
+	 * @param maxDelay
+	 *            max millis waited before any retry
+	 * @param budget
+	 *            retries of the operations without a specific budget
+	 */
+	public RetryPolicy(long baseDelay, long maxDelay, int budget) {
+		this(new Properties(), baseDelay, maxDelay, budget);
+	}
+
+	private RetryPolicy(Properties configuration, long baseDelay, long maxDelay, int budget) {
+		this.configuration = configuration;
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		this.defaultBudget = budget;
+	}
+
+	/**
+	 * @return times the operation is retried
+	 */
+	public int getBudget(String operation) {
+		String ret = configuration.getProperty("retry." + operation + ".budget");
+		return ret != null ? Integer.parseInt(ret) : defaultBudget;
+	}
+
+	/**
+	 * Waits before retrying the failed operation, if the error can be retried and there are retries left.
+	 *
+	 * @param operation
+	 *            name of the operation, for the budget and the stats
+	 * @param e
+	 *            the error
+	 * @param retry
+	 *            retries left, from {@link #getBudget(String)} down to 0
+	 * @return <code>true</code> if the operation must be retried now, <code>false</code> if the error must be thrown. The thread
+	 *         interrupted status is kept if it's interrupted while waiting
+	 */
+	public boolean backoff(String operation, Exception e, int retry) {
+		if (retry <= 0 || !isRetriable(e) || Thread.currentThread().isInterrupted()) {
+			counter(failures, operation).incrementAndGet();
+			return false;
+		}
+		long retryAfter = getRetryAfter(e);
+		if (retryAfter > maxDelay) {
+			LOG.info("Not retrying " + operation + ", google drive asked to wait " + retryAfter + "ms (" + e.getMessage() + ")");
+			counter(failures, operation).incrementAndGet();
+			return false;
+		}
+		long delay = Math.max(retryAfter, 0) + getDelay(Math.max(0, getBudget(operation) - retry));
+		long count = counter(retries, operation).incrementAndGet();
+		LOG.info("Retrying " + operation + " in " + delay + "ms (" + retry + " retries left, " + count + " so far): "
+				+ e.getMessage());
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e1) {
+			Thread.currentThread().interrupt();
+			counter(failures, operation).incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @param attempt
+	 *            retries already done (0 for the first one)
+	 * @return random millis between 0 and the exponential limit of the attempt
+	 */
+	long getDelay(int attempt) {
+		long limit = attempt >= 62 ? maxDelay : Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+		return ThreadLocalRandom.current().nextLong(limit + 1);
+	}
+
+	/**
+	 * @return <code>true</code> if the same request may succeed later
+	 */
+	public static boolean isRetriable(Exception e) {
+		if (e instanceof HttpResponseException) {
+			int status = ((HttpResponseException) e).getStatusCode();
+			if (status >= 500 || status == HTTP_TOO_MANY_REQUESTS || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT) {
+				return true;
+			}
+			return status == HttpURLConnection.HTTP_FORBIDDEN && isRateLimitExceeded((HttpResponseException) e);
+		}
+		if (e instanceof SocketTimeoutException) {
+			return true;
+		}
+		// the rest of interruptions are closed sessions
+		return e instanceof IOException && !(e instanceof InterruptedIOException);
+	}
+
+	/**
+	 * @return <code>true</code> if the 403 is because of the rate limit (<code>rateLimitExceeded</code> or
+	 *         <code>userRateLimitExceeded</code>) and not because of permissions or the daily quota
+	 */
+	private static boolean isRateLimitExceeded(HttpResponseException e) {
+		if (e instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) e).getDetails() != null
+				&& ((GoogleJsonResponseException) e).getDetails().getErrors() != null) {
+			for (ErrorInfo error : ((GoogleJsonResponseException) e).getDetails().getErrors()) {
+				if ("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		// i.e. the error of a batched request
+		return e.getContent() != null
+				&& (e.getContent().contains("\"rateLimitExceeded\"") || e.getContent().contains("\"userRateLimitExceeded\""));
+	}
+
+	/**
+	 * @return millis of the <code>Retry-After</code> header (seconds or http date) or -1 if there isn't
+	 */
+	static long getRetryAfter(Exception e) {
+		if (!(e instanceof HttpResponseException) || ((HttpResponseException) e).getHeaders() == null) {
+			return -1;
+		}
+		String retryAfter = ((HttpResponseException) e).getHeaders().getRetryAfter();
+		if (retryAfter == null) {
+			return -1;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+		} catch (NumberFormatException ex) {
+			try {
+				return Math.max(0, new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(retryAfter).getTime()
+						- System.currentTimeMillis());
+			} catch (ParseException ex2) {
+				LOG.debug("Unknown Retry-After '" + retryAfter + "'");
+				return -1;
+			}
+		}
+	}
+
+	private static AtomicLong counter(ConcurrentMap<String, AtomicLong> counters, String operation) {
+		AtomicLong ret = counters.get(operation);
+		if (ret == null) {
+			AtomicLong existing = counters.putIfAbsent(operation, ret = new AtomicLong());
+			if (existing != null) {
+				ret = existing;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return retries done of the operation
+	 */
+	public long getRetries(String operation) {
+		AtomicLong ret = retries.get(operation);
+		return ret != null ? ret.get() : 0;
+	}
+
+	/**
+	 * @return errors of the operation thrown without retrying (not retriable or out of retries)
+	 */
+	public long getFailures(String operation) {
+		AtomicLong ret = failures.get(operation);
+		return ret != null ? ret.get() : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy [retries=" + retries + ", failures=" + failures + "]";
+	}
+}
@@ -1,6 +1,8 @@
 package org.andresoviedo.apps.gdrive_ftp_adapter.model;
 
 import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -41,6 +43,10 @@ public final class SQLiteCache implements Cache {
 
 	private static final String TABLE_CHILDS = "childs";
 
+	private static final String FILE_COLUMNS = "id,revision,filename,isDirectory,length,lastModified,md5checksum,mimeType,downloadUrl,downloadUrlTime";
+
+	private static final String FILE_VALUES = "?,?,?,?,?,?,?,?,?,?";
+
 	@SuppressWarnings("unused")
 	private final Properties configuration;
 
@@ -91,6 +97,14 @@ public final class SQLiteCache implements Cache {
 				ret.setLength(rs.getLong("length"));
 				ret.setLastModified(rs.getLong("lastModified"));
 				ret.setMd5Checksum(rs.getString("md5Checksum"));
+				ret.setMimeType(rs.getString("mimeType"));
+				if (rs.getString("downloadUrl") != null) {
+					try {
+						ret.setDownloadUrl(new URL(rs.getString("downloadUrl")), rs.getLong("downloadUrlTime"));
+					} catch (MalformedURLException e) {
+						LOG.warn("Invalid download url for file '" + ret.getName() + "': " + e.getMessage());
+					}
+				}
 				ret.setExists(true);
 				return ret;
 			}
@@ -102,7 +116,7 @@ public final class SQLiteCache implements Cache {
 			List<String> queries = new ArrayList<String>();
 			queries.add("create table " + TABLE_FILES + " (id text, revision integer, "
 					+ "filename text not null, isDirectory boolean, length integer, lastModified integer, "
-					+ "md5Checksum text, primary key (id))");
+					+ "md5Checksum text, mimeType text, downloadUrl text, downloadUrlTime integer, primary key (id))");
 			queries.add("create table " + TABLE_CHILDS + " (id integer primary key, childId text references " + TABLE_FILES
 					+ "(id), parentId text references " + TABLE_FILES + "(id), unique (childId, parentId))");
 			queries.add("create index idx_filename on " + TABLE_FILES + " (filename)");
@@ -111,7 +125,17 @@ public final class SQLiteCache implements Cache {
 			LOG.info("Database created");
 		} else {
 			LOG.info("Database found");
+			try {
+				jdbcTemplate.queryForList("select mimeType from " + TABLE_FILES + " limit 1");
+			} catch (DataAccessException e) {
+				LOG.info("Upgrading database...");
+				jdbcTemplate.batchUpdate(new String[] { "alter table " + TABLE_FILES + " add column mimeType text",
+						"alter table " + TABLE_FILES + " add column downloadUrl text",
+						"alter table " + TABLE_FILES + " add column downloadUrlTime integer" });
+			}
 		}
+		// files with the same content are found by checksum, so uploads can be done as server side copies
+		jdbcTemplate.execute("create index if not exists idx_md5Checksum on " + TABLE_FILES + " (md5Checksum)");
 
 		// jdbcTemplate.execute(".timeout 10000");
 	}
@@ -144,10 +168,8 @@ public final class SQLiteCache implements Cache {
 		// +
 		// " (id,revision,filename,isDirectory,length,lastModified,md5checksum)"
 		// + " values(?,?,?,?,?,?,?)");
-		queries.add("insert or replace into " + TABLE_FILES + " (id, revision,filename,isDirectory,length,lastModified,md5checksum)"
-				+ " values(?,?,?,?,?,?,?)");
-		args.add(new Object[] { file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getLength(),
-				file.getLastModified(), file.getMd5Checksum() });
+		queries.add("insert or replace into " + TABLE_FILES + " (" + FILE_COLUMNS + ") values(" + FILE_VALUES + ")");
+		args.add(toArgs(file));
 
 		updateParents(file, queries, args);
 
@@ -155,28 +177,31 @@ public final class SQLiteCache implements Cache {
 	}
 
 	void addFile(GFile file, List<String> queries, List<Object[]> args) {
-		queries.add("insert into " + TABLE_FILES + " (id, revision,filename,isDirectory,length,lastModified,md5checksum)"
-				+ " values(?,?,?,?,?,?,?)");
-		args.add(new Object[] { file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getLength(),
-				file.getLastModified(), file.getMd5Checksum() });
+		queries.add("insert into " + TABLE_FILES + " (" + FILE_COLUMNS + ") values(" + FILE_VALUES + ")");
+		args.add(toArgs(file));
+	}
+
+	private static Object[] toArgs(GFile file) {
+		return new Object[] { file.getId(), file.getRevision(), file.getName(), file.isDirectory(), file.getLength(),
+				file.getLastModified(), file.getMd5Checksum(), file.getMimeType(),
+				file.getDownloadUrl() != null ? file.getDownloadUrl().toString() : null, file.getDownloadUrlTime() };
 	}
 
 	// TODO: merge de este con el addFile
 	public void updateChilds(GFile file, List<GFile> childs) {
 		List<String> queries = new ArrayList<String>();
 		List<Object[]> args = new ArrayList<Object[]>();
-		queries.add("delete from " + TABLE_CHILDS + " where parentId=?");
-		args.add(new Object[] { file.getId() });
+		queries.add("delete from " + TABLE_CHILDS + " where parentId=? and childId not like ?");
+		args.add(new Object[] { file.getId(), PENDING_ID_PREFIX + "%" });
 
-		queries.add("update " + TABLE_FILES + " set revision=?,filename=?,isDirectory=?,length=?,lastModified=?,md5checksum=? where id=?");
+		queries.add("update " + TABLE_FILES
+				+ " set revision=?,filename=?,isDirectory=?,length=?,lastModified=?,md5checksum=?,mimeType=? where id=?");
 		args.add(new Object[] { file.getRevision(), file.getName(), file.isDirectory(), file.getLength(), file.getLastModified(),
-				file.getMd5Checksum(), file.getId() });
+				file.getMd5Checksum(), file.getMimeType(), file.getId() });
 
 		for (GFile child : childs) {
-			queries.add("insert or replace into " + TABLE_FILES + " (id,revision,filename,isDirectory,length,lastModified,md5checksum)"
-					+ " values(?,?,?,?,?,?,?)");
-			args.add(new Object[] { child.getId(), child.getRevision(), child.getName(), child.isDirectory(), child.getLength(),
-					child.getLastModified(), child.getMd5Checksum() });
+			queries.add("insert or replace into " + TABLE_FILES + " (" + FILE_COLUMNS + ") values(" + FILE_VALUES + ")");
+			args.add(toArgs(child));
 
 			for (String parent : child.getParents()) {
 				queries.add("insert into " + TABLE_CHILDS + " (childId,parentId) values(?,?)");
@@ -263,9 +288,15 @@ public final class SQLiteCache implements Cache {
 	public boolean updateFile(GFile file) {
 		return jdbcTemplate.update(
 				"update " + TABLE_FILES
-						+ " set revision=?,filename=?,isDirectory=?,length=?,lastModified=?,md5checksum=? where id=? and revision < ?",
+						+ " set revision=?,filename=?,isDirectory=?,length=?,lastModified=?,md5checksum=?,mimeType=? where id=? and revision < ?",
 				new Object[] { file.getRevision(), file.getName(), file.isDirectory(), file.getLength(), file.getLastModified(),
-						file.getMd5Checksum(), file.getId(), file.getRevision() }) == 1;
+						file.getMd5Checksum(), file.getMimeType(), file.getId(), file.getRevision() }) == 1;
+	}
+
+	@Override
+	public void updateDownloadUrl(GFile file) {
+		jdbcTemplate.update("update " + TABLE_FILES + " set mimeType=?,downloadUrl=?,downloadUrlTime=? where id=?", file.getMimeType(),
+				file.getDownloadUrl() != null ? file.getDownloadUrl().toString() : null, file.getDownloadUrlTime(), file.getId());
 	}
 
 	// public void updateFileAndParents(FTPGFile patch) {
@@ -353,6 +384,19 @@ public final class SQLiteCache implements Cache {
 		}
 	}
 
+	@Override
+	public GFile getFileByMd5(String md5Checksum, long length) {
+		r.lock();
+		try {
+			final List<GFile> query = jdbcTemplate.query("select * from " + TABLE_FILES + " where md5Checksum=? and length=? and exists"
+					+ " (select 1 from " + TABLE_CHILDS + " where " + TABLE_CHILDS + ".childId=" + TABLE_FILES + ".id) limit 1",
+					new Object[] { md5Checksum, length }, rowMapper);
+			return query.isEmpty() ? null : query.get(0);
+		} finally {
+			r.unlock();
+		}
+	}
+
 	// void updateFileRevision(FTPGFile fileId) {
 	// w.lock();
 	// try {
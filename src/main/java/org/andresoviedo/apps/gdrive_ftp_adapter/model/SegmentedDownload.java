@@ -0,0 +1,215 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.TransferMetrics.Transfer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Downloads a file splitting it in segments (byte ranges) that are fetched concurrently and read back in order.
+ * <p>
+ * At most <code>parallelism</code> segments are in memory at the same time (the reorder buffer). When the reader consumes a
+ * segment, the next pending one is scheduled. Every segment is retried on its own if it fails.
+ *
+ * @author andresoviedo
+ */
+public final class SegmentedDownload extends InputStream {
+
+	private static final Log LOG = LogFactory.getLog(SegmentedDownload.class);
+
+	/**
+	 * Opens the content of a byte range of the remote file.
+	 */
+	public interface RangeSource {
+
+		/**
+		 * @param from
+		 *            first byte
+		 * @param to
+		 *            last byte (inclusive)
+		 * @return the content of the range. It must contain exactly the requested bytes
+		 */
+		InputStream open(long from, long to) throws IOException;
+	}
+
+	private final RangeSource source;
+
+	private final long size;
+
+	private final long offset;
+
+	private final int segmentSize;
+
+	private final int parallelism;
+
+	private final RetryPolicy retryPolicy;
+
+	private final ExecutorService executor;
+
+	private final Transfer transfer;
+
+	private final int totalSegments;
+
+	private final Map<Integer, Future<byte[]>> inFlight = new HashMap<Integer, Future<byte[]>>();
+
+	private int nextToSchedule;
+
+	private int nextToRead;
+
+	private byte[] current;
+
+	private int position;
+
+	private boolean closed;
+
+	/**
+	 * @param source
+	 *            where to get the segments from
+	 * @param size
+	 *            the size of the remote file
+	 * @param offset
+	 *            first byte to download
+	 * @param segmentSize
+	 *            size of each range request
+	 * @param parallelism
+	 *            max number of concurrent range requests (and segments kept in memory)
+	 * @param retryPolicy
+	 *            when a failed segment is requested again (operation <code>download.segment</code>)
+	 * @param executor
+	 *            where to run the range requests
+	 * @param transfer
+	 *            metrics of this transfer
+	 */
+	public SegmentedDownload(RangeSource source, long size, long offset, int segmentSize, int parallelism, RetryPolicy retryPolicy,
+			ExecutorService executor, Transfer transfer) {
+		this.source = source;
+		this.size = size;
+		this.offset = offset;
+		this.segmentSize = segmentSize;
+		this.parallelism = parallelism;
+		this.retryPolicy = retryPolicy;
+		this.executor = executor;
+		this.transfer = transfer;
+		this.totalSegments = (int) ((size - offset + segmentSize - 1) / segmentSize);
+	}
+
+	SegmentedDownload start() {
+		LOG.debug("Downloading " + (size - offset) + " bytes in " + totalSegments + " segments of " + segmentSize + " bytes");
+		while (nextToSchedule < totalSegments && nextToSchedule < parallelism) {
+			schedule();
+		}
+		return this;
+	}
+
+	private void schedule() {
+		final int segment = nextToSchedule++;
+		final long from = offset + (long) segment * segmentSize;
+		final long to = Math.min(size, from + segmentSize) - 1;
+		inFlight.put(segment, executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return fetch(segment, from, to, retryPolicy.getBudget("download.segment"));
+			}
+		}));
+	}
+
+	private byte[] fetch(int segment, long from, long to, int retry) throws IOException, InterruptedException {
+		InputStream is = null;
+		try {
+			is = source.open(from, to);
+			byte[] ret = new byte[(int) (to - from + 1)];
+			IOUtils.readFully(is, ret);
+			return ret;
+		} catch (IOException e) {
+			LOG.info("Segment " + segment + " failed (" + e.getMessage() + ")");
+			if (retryPolicy.backoff("download.segment", e, retry)) {
+				return fetch(segment, from, to, --retry);
+			}
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (current != null && position < current.length) {
+			return true;
+		}
+		if (nextToRead == totalSegments) {
+			transfer.end(true);
+			return false;
+		}
+		Future<byte[]> future = inFlight.remove(nextToRead++);
+		try {
+			current = future.get();
+			position = 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for segment " + (nextToRead - 1));
+		} catch (CancellationException e) {
+			throw new IOException("Segment " + (nextToRead - 1) + " cancelled");
+		} catch (ExecutionException e) {
+			throw new IOException("Segment " + (nextToRead - 1) + " failed", e.getCause());
+		}
+		transfer.onBytes(current.length);
+		if (nextToSchedule < totalSegments) {
+			schedule();
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current != null ? current.length - position : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		current = null;
+		for (Future<byte[]> future : inFlight.values()) {
+			future.cancel(true);
+		}
+		inFlight.clear();
+		transfer.end(nextToRead == totalSegments);
+	}
+}
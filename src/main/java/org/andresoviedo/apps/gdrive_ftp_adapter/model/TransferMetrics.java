@@ -0,0 +1,116 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Accumulates time to first byte and throughput of the transfers made against google drive.
+ *
+ * @author andresoviedo
+ */
+public final class TransferMetrics {
+
+	private static final Log LOG = LogFactory.getLog(TransferMetrics.class);
+
+	private final String name;
+
+	private final AtomicLong transfers = new AtomicLong();
+	private final AtomicLong aborted = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong firstByteMillis = new AtomicLong();
+	private final AtomicLong durationMillis = new AtomicLong();
+
+	public TransferMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Starts measuring a new transfer. The clock starts now, so call it just before sending the request.
+	 *
+	 * @param filename
+	 *            name used when logging the transfer
+	 * @return the transfer handle
+	 */
+	public Transfer start(String filename) {
+		return new Transfer(filename);
+	}
+
+	public long getTransfers() {
+		return transfers.get();
+	}
+
+	public long getAborted() {
+		return aborted.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getAverageFirstByteMillis() {
+		long count = transfers.get() + aborted.get();
+		return count == 0 ? 0 : firstByteMillis.get() / count;
+	}
+
+	/**
+	 * @return average throughput in bytes/second of all transfers
+	 */
+	public long getThroughput() {
+		long millis = durationMillis.get();
+		return millis == 0 ? 0 : bytes.get() * 1000 / millis;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [transfers=" + transfers + ", aborted=" + aborted + ", bytes=" + bytes + ", avgFirstByte="
+				+ getAverageFirstByteMillis() + "ms, throughput=" + getThroughput() / 1024 + "KB/s]";
+	}
+
+	public final class Transfer {
+
+		private final String filename;
+		private final long startTime = System.currentTimeMillis();
+		private long firstByteTime;
+		private long transferred;
+		private boolean ended;
+
+		private Transfer(String filename) {
+			this.filename = filename;
+		}
+
+		public void onBytes(int count) {
+			if (firstByteTime == 0) {
+				firstByteTime = System.currentTimeMillis();
+			}
+			transferred += count;
+		}
+
+		public long getTransferred() {
+			return transferred;
+		}
+
+		/**
+		 * Finish measuring this transfer. Calling it more than once has no effect.
+		 *
+		 * @param completed
+		 *            <code>true</code> if all the content was transferred
+		 */
+		public synchronized void end(boolean completed) {
+			if (ended) {
+				return;
+			}
+			ended = true;
+			long now = System.currentTimeMillis();
+			long ttfb = (firstByteTime == 0 ? now : firstByteTime) - startTime;
+			long duration = Math.max(1, now - startTime);
+			(completed ? transfers : aborted).incrementAndGet();
+			bytes.addAndGet(transferred);
+			firstByteMillis.addAndGet(ttfb);
+			durationMillis.addAndGet(duration);
+			LOG.info((completed ? "Transferred '" : "Aborted '") + filename + "' " + transferred + " bytes in " + duration
+					+ "ms (first byte " + ttfb + "ms, " + (transferred * 1000 / duration / 1024) + "KB/s). " + TransferMetrics.this);
+		}
+	}
+}
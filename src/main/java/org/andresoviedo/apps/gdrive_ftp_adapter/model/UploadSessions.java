@@ -0,0 +1,129 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Resumable upload sessions not finished yet, so uploads interrupted by a restart or a lost connection are continued instead of
+ * started again. Sessions are stored in a sqlite database next to the metadata cache, together with the id of the content they
+ * were started for, so a session is never continued with other content.
+ *
+ * @author andresoviedo
+ */
+public final class UploadSessions {
+
+	private static final Log LOG = LogFactory.getLog(UploadSessions.class);
+
+	private static final String TABLE_SESSIONS = "sessions";
+
+	/**
+	 * Google drive keeps the upload sessions for a week
+	 */
+	private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+	private final JdbcTemplate jdbcTemplate;
+
+	public static final class Session {
+		private final String url;
+		private final long uploaded;
+		private final String contentId;
+
+		private Session(String url, long uploaded, String contentId) {
+			this.url = url;
+			this.uploaded = uploaded;
+			this.contentId = contentId;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return bytes acknowledged by google drive the last time it was checked
+		 */
+		public long getUploaded() {
+			return uploaded;
+		}
+
+		/**
+		 * @return id of the content the session was started for or <code>null</code> if it's not known (i.e. a client upload)
+		 */
+		public String getContentId() {
+			return contentId;
+		}
+	}
+
+	public UploadSessions(Properties configuration) {
+		String account = configuration.getProperty("account", "default");
+		File dataDir = new File("data" + File.separator + account);
+		if (!dataDir.exists() && !dataDir.mkdirs()) {
+			throw new RuntimeException("Could not create database folder " + dataDir.getAbsolutePath());
+		}
+
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("org.sqlite.JDBC");
+		dataSource.setUrl("jdbc:sqlite:file:" + new File(dataDir, "uploads.db").getPath());
+		dataSource.setMaxWait(60000);
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.execute("create table if not exists " + TABLE_SESSIONS
+				+ " (target text, url text not null, uploaded integer, created integer, contentId text, primary key (target))");
+		try {
+			jdbcTemplate.queryForList("select contentId from " + TABLE_SESSIONS + " limit 1");
+		} catch (DataAccessException e) {
+			LOG.info("Upgrading upload sessions database...");
+			jdbcTemplate.execute("alter table " + TABLE_SESSIONS + " add column contentId text");
+		}
+		int expired = jdbcTemplate.update("delete from " + TABLE_SESSIONS + " where created < ?", System.currentTimeMillis() - MAX_AGE);
+		if (expired > 0) {
+			LOG.info("Removed " + expired + " expired upload sessions");
+		}
+	}
+
+	/**
+	 * @return the key of the upload: the id of the updated file or the parent folder and name of the new file
+	 */
+	public static String getTarget(GFile file) {
+		if (file.isExists()) {
+			return file.getId();
+		}
+		String parentId = file.getParents() != null && !file.getParents().isEmpty() ? file.getParents().iterator().next() : file
+				.getCurrentParent().getId();
+		return parentId + "/" + file.getName();
+	}
+
+	public Session get(String target) {
+		List<Session> ret = jdbcTemplate.query("select url, uploaded, contentId from " + TABLE_SESSIONS + " where target=?",
+				new RowMapper<Session>() {
+					@Override
+					public Session mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return new Session(rs.getString("url"), rs.getLong("uploaded"), rs.getString("contentId"));
+					}
+				}, target);
+		return ret.isEmpty() ? null : ret.get(0);
+	}
+
+	public void add(String target, String url, String contentId) {
+		jdbcTemplate.update("insert or replace into " + TABLE_SESSIONS + " (target, url, uploaded, created, contentId) values(?,?,?,?,?)",
+				target, url, 0, System.currentTimeMillis(), contentId);
+	}
+
+	public void updateUploaded(String target, long uploaded) {
+		jdbcTemplate.update("update " + TABLE_SESSIONS + " set uploaded=? where target=?", uploaded, target);
+	}
+
+	public void remove(String target) {
+		jdbcTemplate.update("delete from " + TABLE_SESSIONS + " where target=?", target);
+	}
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Timer;
@@ -14,14 +15,18 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.Cache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.ContentCache;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GChange;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.PageConsumer;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.RequestBatcher;
+import org.andresoviedo.util.program.RateLimiter;
+import org.andresoviedo.util.program.RateLimiter.Priority;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.ParentReference;
 
 /**
  * Cache synchronization service (by polling).
@@ -37,15 +42,18 @@ public final class FtpGdriveSynchService {
 
 	private Cache cache;
 
+	private ContentCache contentCache;
+
 	private ExecutorService executor;
 
 	private Timer timer;
 
 	private TimerTask synchPeriodicTask;
 
-	public FtpGdriveSynchService(Properties configuration, Cache cache,  GoogleDrive googleDrive) {
+	public FtpGdriveSynchService(Properties configuration, Cache cache, ContentCache contentCache, GoogleDrive googleDrive) {
 		this.googleDrive = googleDrive;
 		this.cache = cache;
+		this.contentCache = contentCache;
 		this.executor = Executors.newFixedThreadPool(4);
 		this.timer = new Timer(true);
 		init();
@@ -94,11 +102,12 @@ public final class FtpGdriveSynchService {
 
 			@Override
 			public void run() {
+				RateLimiter.setPriority(Priority.SYNC);
 				try {
 					// revisar lista de cambios de google
 					checkForRemoteChanges();
 
-					synchPendingFolders();
+					synchPendingFolders(new HashSet<String>());
 				} catch (Exception e) {
 					LOG.error(e.getMessage(), e);
 				}
@@ -109,16 +118,23 @@ public final class FtpGdriveSynchService {
 				long largestChangeId = cache.getRevision();
 				LOG.debug("Largest changeId found in local database " + largestChangeId);
 				if (largestChangeId > 0) {
-					List<Change> googleChanges;
-					while (!(googleChanges = googleDrive.getAllChanges(largestChangeId + 1)).isEmpty()) {
-
-						// TODO: revisar la sincronización de esto cuando theads
-						// > 1
-						LOG.info("Detected " + googleChanges.size() + " changes");
+					// each page is processed as soon as it arrives
+					PageConsumer<GChange> processor = new PageConsumer<GChange>() {
+						@Override
+						public void accept(List<GChange> googleChanges) {
+							if (googleChanges.isEmpty()) {
+								return;
+							}
+							// TODO: revisar la sincronización de esto cuando theads
+							// > 1
+							LOG.info("Detected " + googleChanges.size() + " changes");
 
-						for (Change change : googleChanges) {
-							processChange(change.getFileId(), change);
+							for (GChange change : googleChanges) {
+								processChange(change);
+							}
 						}
+					};
+					while (googleDrive.getChanges(largestChangeId + 1, processor) > 0) {
 						largestChangeId = cache.getRevision();
 						LOG.info("Largest changeId found in local database " + largestChangeId);
 					}
@@ -127,9 +143,14 @@ public final class FtpGdriveSynchService {
 				}
 			}
 
-			private void processChange(String fileId, Change change) {
+			private void processChange(GChange change) {
+				final String fileId = change.getFileId();
 				final GFile localFile = cache.getFile(fileId);
-				if (change.getDeleted() || change.getFile().getLabels().getTrashed()) {
+				if (isExportChanged(localFile, change)) {
+					// exports of the google document are not valid anymore
+					contentCache.invalidate(fileId);
+				}
+				if (change.isDeleted() || change.getFile().getLabels().contains("trashed")) {
 					if (localFile != null) {
 						LOG.info("File deleted remotely " + localFile.getName() + "...");
 						int deletedFiles = cache.deleteFile(localFile.getId());
@@ -145,19 +166,9 @@ public final class FtpGdriveSynchService {
 					return;
 				}
 
-				File changeFile = change.getFile();
-				Set<String> parents = new HashSet<String>();
-				for (ParentReference parentReference : changeFile.getParents()) {
-					if (parentReference.getIsRoot()) {
-						parents.add("root");
-					} else {
-						parents.add(parentReference.getId());
-					}
-				}
-
 				if (localFile == null) {
 					// TODO: arreglar el path
-					GFile newLocalFile = GoogleDrive.GFile.create(changeFile);
+					GFile newLocalFile = change.getFile();
 					if (!newLocalFile.isDirectory()) {
 						newLocalFile.setRevision(change.getId());
 					} else {
@@ -170,47 +181,74 @@ public final class FtpGdriveSynchService {
 				} else if (change.getId() > localFile.getRevision()) {
 					// File updated
 					// renamed file?
-					GFile patchedLocalFile = GoogleDrive.GFile.create(change.getFile());
+					GFile patchedLocalFile = change.getFile();
 					LOG.info("Updating file " + localFile.getDiffs(patchedLocalFile));
 					patchedLocalFile.setRevision(change.getId());
 					cache.addOrUpdateFile(patchedLocalFile);
 				} else {
 					LOG.error("Processing ununderstood change :(");
-					GFile patchedLocalFile = GoogleDrive.GFile.create(change.getFile());
+					GFile patchedLocalFile = change.getFile();
 					LOG.error("Updating file " + localFile + " to " + patchedLocalFile);
 					patchedLocalFile.setRevision(change.getId());
 					cache.addOrUpdateFile(patchedLocalFile);
 				}
 			}
 
-			private void synchPendingFolders() {
+			/**
+			 * @return <code>true</code> if the change is of a google document we know and it was removed or its content changed. Only
+			 *         google documents have exports in the content cache, and renames or moves don't change them
+			 */
+			private boolean isExportChanged(GFile localFile, GChange change) {
+				if (localFile == null || !ContentCache.isExport(localFile)) {
+					return false;
+				}
+				GFile remoteFile = change.getFile();
+				return change.isDeleted() || remoteFile == null || remoteFile.getLabels().contains("trashed")
+						|| remoteFile.getLastModified() != localFile.getLastModified();
+			}
+
+			/**
+			 * @param failed
+			 *            folders that couldn't be requested in this round. They are synchronized in the next one
+			 */
+			private void synchPendingFolders(Set<String> failed) {
 				LOG.debug("Checking for pending folders to synchronize...");
 				try {
 					// always sync pending directories first
 					List<String> unsynchChilds = null;
-					while (!(unsynchChilds = cache.getAllFolderByRevision(0)).isEmpty()) {
+					while (!(unsynchChilds = getPendingFolders(failed)).isEmpty()) {
 						List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
 
 						int total = cache.getAllFolderByRevision(-1).size();
 						int totalPending = unsynchChilds.size();
 						LOG.info("Synchronizing folders (" + (total - totalPending) + " out of " + total + ")...");
 
-						int limit = 10;
+						if (unsynchChilds.size() > RequestBatcher.MAX_BATCH_SIZE) {
+							unsynchChilds = unsynchChilds.subList(0, RequestBatcher.MAX_BATCH_SIZE);
+						}
+						// cogemos la revisión primero de todo por si luego hay cambios, que esos machaquen estos
+						final long largestChangeId = googleDrive.getLargestChangeId(-1);
+						// the metadata of all the folders in a single batch request
+						Set<String> remoteIds = new HashSet<String>(unsynchChilds);
+						remoteIds.remove("root");
+						final Map<String, File> remoteFolders = googleDrive.getFiles(remoteIds);
 						for (final String unsynchChild : unsynchChilds) {
+							if (!unsynchChild.equals("root") && !remoteFolders.containsKey(unsynchChild)) {
+								LOG.warn("Folder '" + unsynchChild + "' couldn't be requested. It will be synchronized later");
+								failed.add(unsynchChild);
+								continue;
+							}
 							LOG.debug("Creating synch task for '" + unsynchChild + "'...");
 							tasks.add(new Callable<Void>() {
 								String folderId = unsynchChild;
 
 								@Override
 								public Void call() {
-									synchFolder(folderId);
+									RateLimiter.setPriority(Priority.SYNC);
+									synchFolder(folderId, largestChangeId, remoteFolders.get(folderId));
 									return null;
 								}
 							});
-							limit--;
-							if (limit < 0) {
-								break;
-							}
 						}
 						LOG.debug("Executing " + tasks.size() + " tasks...");
 						List<Future<Void>> futures = executor.invokeAll(tasks);
@@ -228,13 +266,19 @@ public final class FtpGdriveSynchService {
 							}
 						}
 						LOG.debug("All executions finished to run.  " + "Lets check again for any pending folders...");
-						synchPendingFolders();
+						synchPendingFolders(failed);
 					}
 				} catch (InterruptedException e) {
 					LOG.error(e.getMessage(), e);
 				}
 				LOG.debug("Synchronization finalized OK");
 			}
+
+			private List<String> getPendingFolders(Set<String> failed) {
+				List<String> ret = new ArrayList<String>(cache.getAllFolderByRevision(0));
+				ret.removeAll(failed);
+				return ret;
+			}
 		};
 
 	}
@@ -266,18 +310,31 @@ public final class FtpGdriveSynchService {
 	 *            el id de la carpeta remota ("root" para especificar la raiz)
 	 */
 	private void synchFolder(String folderId) {
-
 		try {
 			// cogemos la revisión primero de todo por si luego hay cambios, que
 			// esos machaquen estos
 			long largestChangeId = googleDrive.getLargestChangeId(-1);
+			synchFolder(folderId, largestChangeId, folderId.equals("root") ? null : googleDrive.getFile(folderId));
+		} catch (Exception e) {
+			LOG.fatal(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param largestChangeId
+	 *            the revision of google drive taken before requesting the folder
+	 * @param folder
+	 *            the folder already requested to google drive (ignored for the root folder)
+	 */
+	private void synchFolder(String folderId, long largestChangeId, File folder) {
 
+		try {
 			GFile remoteFile = null;
 
 			if (folderId.equals("root")) {
 				remoteFile = cache.getFile("root");
 			} else {
-				remoteFile = GoogleDrive.GFile.create(googleDrive.getFile(folderId));
+				remoteFile = GoogleDrive.GFile.create(folder);
 				if (remoteFile == null || remoteFile.getLabels().contains("trashed")) {
 					// TODO: if exists maybe?
 					final int deleted = cache.deleteFile(folderId);
@@ -310,7 +367,7 @@ public final class FtpGdriveSynchService {
 
 			LOG.debug("Recreating childs for folder '" + folderId + "'");
 
-			List<GFile> newLocalChilds = GoogleDrive.GFile.create(googleDrive.list(folderId), 0);
+			List<GFile> newLocalChilds = googleDrive.list(folderId);
 			if (newLocalChilds == null) {
 				LOG.warn("File deleted remotely while requesting list?");
 				cache.deleteFile(folderId);
@@ -0,0 +1,289 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.service;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.ContentCache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.util.program.RateLimiter;
+import org.andresoviedo.util.program.RateLimiter.Priority;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Read-ahead of the files of a folder when the client is downloading them one after the other (i.e. FileZilla or mget *).
+ * <p>
+ * When a file is requested right after its previous sibling, the next siblings are downloaded in background into the content
+ * cache. Prefetches the client doesn't ask for (because it jumped to another file or folder) are cancelled.
+ *
+ * @author andresoviedo
+ */
+public final class Prefetcher {
+
+	private static final Log LOG = LogFactory.getLog(Prefetcher.class);
+
+	/**
+	 * Max time to wait for a prefetch of the requested file before downloading it again
+	 */
+	private static final long MAX_WAIT_MINUTES = 10;
+
+	private final GoogleDrive googleDrive;
+
+	private final ContentCache contentCache;
+
+	/**
+	 * Number of siblings to prefetch
+	 */
+	private final int files;
+
+	/**
+	 * Max bytes being prefetched at the same time
+	 */
+	private final long maxBytes;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Last listed folders (sorted by name as most clients do)
+	 */
+	private final Map<String, List<GFile>> listings = new LinkedHashMap<String, List<GFile>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<GFile>> eldest) {
+			return size() > 20;
+		}
+	};
+
+	/**
+	 * Last file requested per folder
+	 */
+	private final Map<String, Integer> lastRequested = new HashMap<String, Integer>();
+
+	private final Map<String, Prefetch> prefetches = new HashMap<String, Prefetch>();
+
+	private long prefetchingBytes;
+
+	private static final class Prefetch {
+		private final GFile file;
+		private final String folderId;
+		private Future<?> future;
+		/**
+		 * Priority of the thread running the prefetch, <code>null</code> while it's queued. Guarded by the prefetcher
+		 */
+		private AtomicReference<Priority> priority;
+
+		private Prefetch(GFile file, String folderId) {
+			this.file = file;
+			this.folderId = folderId;
+		}
+	}
+
+	public Prefetcher(Properties configuration, GoogleDrive googleDrive, ContentCache contentCache) {
+		this.googleDrive = googleDrive;
+		this.contentCache = contentCache;
+		this.files = Integer.parseInt(configuration.getProperty("prefetch.files", "3"));
+		this.maxBytes = Long.parseLong(configuration.getProperty("prefetch.maxBytes", String.valueOf(256 * 1024 * 1024)));
+		this.executor = Executors.newFixedThreadPool(Integer.parseInt(configuration.getProperty("prefetch.threads", "2")));
+	}
+
+	public boolean isEnabled() {
+		return files > 0 && contentCache.isEnabled();
+	}
+
+	/**
+	 * Register the files of a folder listed by the client
+	 */
+	public synchronized void onListing(String folderId, List<GFile> folderFiles) {
+		if (!isEnabled()) {
+			return;
+		}
+		List<GFile> sorted = new ArrayList<GFile>(folderFiles.size());
+		for (GFile file : folderFiles) {
+			if (!file.isDirectory()) {
+				sorted.add(file);
+			}
+		}
+		Collections.sort(sorted, new Comparator<GFile>() {
+			@Override
+			public int compare(GFile o1, GFile o2) {
+				return o1.getName().compareToIgnoreCase(o2.getName());
+			}
+		});
+		listings.put(folderId, sorted);
+	}
+
+	/**
+	 * Notify the file is going to be downloaded. If the file is being prefetched, this waits until it's in the content cache. A
+	 * prefetch of the file that hasn't started yet is cancelled, so the caller downloads the file itself.
+	 */
+	public void onRetr(GFile file) {
+		if (!isEnabled()) {
+			return;
+		}
+		Future<?> pending = schedule(file);
+		if (pending == null) {
+			return;
+		}
+		LOG.info("Waiting for prefetch of '" + file.getName() + "'...");
+		try {
+			pending.get(MAX_WAIT_MINUTES, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			LOG.warn("Prefetch of '" + file.getName() + "' failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the prefetch of the requested file if it's in progress
+	 */
+	private synchronized Future<?> schedule(GFile file) {
+		String folderId = null;
+		int index = -1;
+		for (Map.Entry<String, List<GFile>> listing : listings.entrySet()) {
+			index = indexOf(listing.getValue(), file.getId());
+			if (index != -1) {
+				folderId = listing.getKey();
+				break;
+			}
+		}
+
+		Prefetch requested = prefetches.get(file.getId());
+		Future<?> ret = null;
+		if (requested != null && !requested.future.isDone()) {
+			if (requested.priority == null) {
+				// still queued behind other prefetches, the client would wait for all of them
+				LOG.debug("Cancelling queued prefetch of '" + file.getName() + "', it's downloaded now");
+				requested.future.cancel(false);
+				prefetches.remove(file.getId());
+				prefetchingBytes -= file.getSize();
+			} else {
+				// the client is waiting for it now
+				requested.priority.set(Priority.INTERACTIVE);
+				ret = requested.future;
+			}
+		}
+
+		if (folderId == null) {
+			cancel(file.getId(), null, -1, -1);
+			return ret;
+		}
+
+		Integer previous = lastRequested.put(folderId, index);
+		List<GFile> siblings = listings.get(folderId);
+		if (previous == null || index != previous + 1) {
+			// not sequential. prefetches of this folder are useless now
+			cancel(file.getId(), null, -1, -1);
+			return ret;
+		}
+
+		// cancel what is not in the new window
+		int last = Math.min(siblings.size() - 1, index + files);
+		cancel(file.getId(), folderId, index + 1, last);
+
+		for (int i = index + 1; i <= last; i++) {
+			final GFile sibling = siblings.get(i);
+			if (prefetches.containsKey(sibling.getId()) || !contentCache.accepts(sibling) || contentCache.get(sibling) != null) {
+				continue;
+			}
+			if (prefetchingBytes + sibling.getSize() > maxBytes) {
+				break;
+			}
+			final Prefetch prefetch = new Prefetch(sibling, folderId);
+			prefetches.put(sibling.getId(), prefetch);
+			prefetchingBytes += sibling.getSize();
+			LOG.debug("Prefetching '" + sibling.getName() + "'...");
+			prefetch.future = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (Prefetcher.this) {
+						if (prefetches.get(sibling.getId()) != prefetch) {
+							// cancelled before starting
+							return;
+						}
+						RateLimiter.setPriority(Priority.PREFETCH);
+						prefetch.priority = RateLimiter.currentPriority();
+					}
+					prefetch(prefetch);
+				}
+			});
+		}
+		return ret;
+	}
+
+	private void prefetch(Prefetch prefetch) {
+		InputStream is = null;
+		try {
+			is = contentCache.store(prefetch.file, googleDrive.downloadFileStream(prefetch.file, 0));
+			IOUtils.copyLarge(is, NullOutputStream.NULL_OUTPUT_STREAM);
+		} catch (Exception e) {
+			if (!Thread.currentThread().isInterrupted()) {
+				LOG.warn("Prefetch of '" + prefetch.file.getName() + "' failed: " + e.getMessage());
+			}
+		} finally {
+			IOUtils.closeQuietly(is);
+			synchronized (this) {
+				if (prefetches.get(prefetch.file.getId()) == prefetch) {
+					prefetches.remove(prefetch.file.getId());
+					prefetchingBytes -= prefetch.file.getSize();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cancel all the prefetches except the requested file and the ones of the specified folder and window
+	 */
+	private void cancel(String requestedFileId, String folderId, int first, int last) {
+		for (Iterator<Prefetch> it = prefetches.values().iterator(); it.hasNext();) {
+			Prefetch prefetch = it.next();
+			if (prefetch.file.getId().equals(requestedFileId)) {
+				continue;
+			}
+			if (prefetch.folderId.equals(folderId)) {
+				int index = indexOf(listings.get(folderId), prefetch.file.getId());
+				if (index >= first && index <= last) {
+					continue;
+				}
+			}
+			LOG.debug("Cancelling prefetch of '" + prefetch.file.getName() + "'");
+			prefetch.future.cancel(true);
+			it.remove();
+			prefetchingBytes -= prefetch.file.getSize();
+		}
+	}
+
+	private static int indexOf(List<GFile> files, String fileId) {
+		if (files == null) {
+			return -1;
+		}
+		for (int i = 0; i < files.size(); i++) {
+			if (files.get(i).getId().equals(fileId)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+	}
+}
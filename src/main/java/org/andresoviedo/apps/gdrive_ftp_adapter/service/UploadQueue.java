@@ -0,0 +1,515 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.Cache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.RetryPolicy;
+import org.andresoviedo.util.io.AbortableOutputStream;
+import org.andresoviedo.util.io.Md5OutputStream;
+import org.andresoviedo.util.program.RateLimiter;
+import org.andresoviedo.util.program.RateLimiter.Priority;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Write-back queue of uploads. The ftp client gets the transfer confirmed as soon as the content is on local disk and the files are
+ * uploaded to google drive in background by a pool of workers.
+ * <p>
+ * Every accepted upload is journaled in <code>data/&lt;account&gt;/uploads</code> (the content plus a properties file with the
+ * target, length and checksum of the content), so the pending uploads are replayed after a restart or a crash. The content is
+ * forced to disk before the journal is written, and it's checked again on replay. New files are shown in the metadata cache with a
+ * placeholder id until they are uploaded.
+ * <p>
+ * Uploads that fail with a transient error are retried later. Uploads rejected by google drive are moved to
+ * <code>data/&lt;account&gt;/uploads/failed</code> (dead letters) and not retried.
+ *
+ * @author andresoviedo
+ */
+public final class UploadQueue {
+
+	private static final Log LOG = LogFactory.getLog(UploadQueue.class);
+
+	/**
+	 * Prefix of the ids of the files not yet uploaded
+	 */
+	public static final String PENDING_ID_PREFIX = Cache.PENDING_ID_PREFIX;
+
+	private static final String JOURNAL_EXTENSION = ".journal";
+
+	private static final long RETRY_DELAY_SECONDS = 60;
+
+	private final File queueDir;
+
+	/**
+	 * Uploads that can't succeed, kept so the content is not lost
+	 */
+	private final File failedDir;
+
+	private final Cache cache;
+
+	private final GoogleDrive googleDrive;
+
+	private final FtpGdriveSynchService updaterService;
+
+	private final boolean enabled;
+
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Last entry of each target (file id or folder and name). Older entries of the same target are superseded
+	 */
+	private final Map<String, Entry> pending = new HashMap<String, Entry>();
+
+	/**
+	 * Targets being uploaded right now. Uploads of the same target are done one after the other
+	 */
+	private final Set<String> uploading = new HashSet<String>();
+
+	/**
+	 * Upload waiting for the running upload of the same target, it's started when that one finishes
+	 */
+	private final Map<String, Entry> chained = new HashMap<String, Entry>();
+
+	private static final class Entry {
+		private final String id;
+		private final File data;
+		private final String name;
+		private final String parentId;
+		private String fileId;
+		private final long lastModified;
+		/**
+		 * Length of the content when it was journaled, -1 if not known (journals of older versions)
+		 */
+		private long length = -1;
+		/**
+		 * Checksum of the content, to check it on replay and so new files can be copied from a file with the same content
+		 */
+		private String md5;
+
+		private Entry(String id, File data, String name, String parentId, String fileId, long lastModified) {
+			this.id = id;
+			this.data = data;
+			this.name = name;
+			this.parentId = parentId;
+			this.fileId = fileId;
+			this.lastModified = lastModified;
+		}
+
+		private String getTarget() {
+			return fileId != null ? fileId : parentId + "/" + name;
+		}
+
+		private String getPlaceholderId() {
+			return PENDING_ID_PREFIX + id;
+		}
+	}
+
+	public UploadQueue(Properties configuration, Cache cache, GoogleDrive googleDrive, FtpGdriveSynchService updaterService) {
+		this.cache = cache;
+		this.googleDrive = googleDrive;
+		this.updaterService = updaterService;
+		this.enabled = "writeback".equals(configuration.getProperty("upload.mode", "stream"));
+		this.executor = Executors.newScheduledThreadPool(Integer.parseInt(configuration.getProperty("upload.writeback.threads", "4")));
+
+		String account = configuration.getProperty("account", "default");
+		queueDir = new File("data" + File.separator + account + File.separator + "uploads");
+		failedDir = new File(queueDir, "failed");
+		if (!failedDir.exists() && !failedDir.mkdirs()) {
+			throw new RuntimeException("Could not create upload queue folder " + failedDir.getAbsolutePath());
+		}
+		replay();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enqueue again the uploads accepted before the last stop. Content not journaled was never confirmed to the client, so it's
+	 * removed.
+	 */
+	private void replay() {
+		File[] files = queueDir.listFiles();
+		Arrays.sort(files);
+		Set<File> journaled = new HashSet<File>();
+		for (File file : files) {
+			if (!file.getName().endsWith(JOURNAL_EXTENSION)) {
+				continue;
+			}
+			try {
+				Entry entry = readJournal(file);
+				if (!entry.data.exists()) {
+					LOG.error("Content of pending upload '" + entry.name + "' not found. Discarding it...");
+					FileUtils.deleteQuietly(file);
+					continue;
+				}
+				if (!isIntact(entry)) {
+					LOG.error("Content of pending upload '" + entry.name + "' is corrupted. Discarding it...");
+					FileUtils.deleteQuietly(file);
+					continue;
+				}
+				journaled.add(entry.data);
+				LOG.info("Replaying upload of '" + entry.name + "'...");
+				if (entry.fileId == null) {
+					addPlaceholder(entry);
+				}
+				enqueue(entry);
+			} catch (IOException e) {
+				LOG.error("Journal '" + file + "' couldn't be read: " + e.getMessage());
+			}
+		}
+		for (File file : files) {
+			if (file.isFile() && !file.getName().endsWith(JOURNAL_EXTENSION) && !journaled.contains(file)) {
+				FileUtils.deleteQuietly(file);
+			}
+		}
+	}
+
+	/**
+	 * @return the stream where the client writes the content. The upload is enqueued when the stream is closed and discarded if
+	 *         it's aborted
+	 */
+	public AbortableOutputStream createOutputStream(final GFile file) throws IOException {
+		final String id = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+		String parentId = file.getParents() != null && !file.getParents().isEmpty() ? file.getParents().iterator().next() : null;
+		String fileId = file.isExists() ? file.getId() : null;
+		if (fileId != null && fileId.startsWith(PENDING_ID_PREFIX)) {
+			// overwriting a file not uploaded yet
+			Entry previous = getEntryByPlaceholder(fileId);
+			parentId = previous != null ? previous.parentId : parentId;
+			fileId = null;
+		}
+		final Entry entry = new Entry(id, new File(queueDir, id + ".upload." + file.getName()), file.getName(), parentId, fileId,
+				file.getLastModified() != 0 ? file.getLastModified() : System.currentTimeMillis());
+		final FileOutputStream os = new FileOutputStream(entry.data);
+		final Md5OutputStream checksum = new Md5OutputStream(os);
+		return new AbortableOutputStream(checksum) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				try {
+					flush();
+					// the upload is confirmed to the client once journaled, so the content must be on disk before
+					os.getFD().sync();
+				} finally {
+					super.close();
+				}
+				entry.length = entry.data.length();
+				entry.md5 = checksum.getMd5();
+				try {
+					writeJournal(entry);
+				} catch (IOException e) {
+					// not confirmed to the client, so it's not kept
+					remove(entry);
+					throw e;
+				}
+				if (entry.fileId == null) {
+					addPlaceholder(entry);
+				}
+				enqueue(entry);
+			}
+
+			@Override
+			public void abort() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				out.close();
+				FileUtils.deleteQuietly(entry.data);
+			}
+		};
+	}
+
+	/**
+	 * @return the content of the file if it's pending to be uploaded, <code>null</code> otherwise
+	 */
+	public synchronized File getPendingContent(GFile file) {
+		for (Entry entry : pending.values()) {
+			if (file.getId().equals(entry.fileId) || file.getId().equals(entry.getPlaceholderId())) {
+				return entry.data;
+			}
+		}
+		return null;
+	}
+
+	private synchronized Entry getEntryByPlaceholder(String placeholderId) {
+		for (Entry entry : pending.values()) {
+			if (entry.getPlaceholderId().equals(placeholderId)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void addPlaceholder(Entry entry) {
+		GFile placeholder = new GFile(Collections.singleton(entry.parentId), entry.name);
+		placeholder.setId(entry.getPlaceholderId());
+		placeholder.setLength(entry.data.length());
+		placeholder.setLastModified(entry.lastModified);
+		cache.addOrUpdateFile(placeholder);
+	}
+
+	private synchronized void enqueue(final Entry entry) {
+		Entry superseded = pending.put(entry.getTarget(), entry);
+		if (superseded != null && superseded.fileId == null) {
+			cache.deleteFile(superseded.getPlaceholderId());
+		}
+		schedule(entry, 0);
+	}
+
+	private void schedule(final Entry entry, long delaySeconds) {
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				RateLimiter.setPriority(Priority.MAINTENANCE);
+				upload(entry);
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void upload(Entry entry) {
+		String target;
+		synchronized (this) {
+			target = entry.getTarget();
+			if (pending.get(target) != entry) {
+				LOG.info("Upload of '" + entry.name + "' superseded by a newer one");
+				remove(entry);
+				return;
+			}
+			if (!uploading.add(target)) {
+				// started when the previous upload of the same file finishes
+				Entry superseded = chained.put(target, entry);
+				if (superseded != null) {
+					LOG.info("Upload of '" + superseded.name + "' superseded by a newer one");
+					remove(superseded);
+				}
+				return;
+			}
+		}
+		try {
+			com.google.api.services.drive.model.File uploaded;
+			try {
+				GFile file = new GFile(Collections.singleton(entry.parentId), entry.name);
+				file.setLastModified(entry.lastModified);
+				file.setTransferFile(entry.data);
+				if (entry.fileId != null) {
+					file.setId(entry.fileId);
+					file.setExists(true);
+				}
+				uploaded = null;
+				if (entry.fileId == null) {
+					uploaded = copyFile(entry, file);
+				}
+				if (uploaded == null) {
+					uploaded = googleDrive.uploadFile(file);
+				}
+			} catch (Exception e) {
+				if (isRetriable(entry, e)) {
+					LOG.error("Pending upload of '" + entry.name + "' failed. Retrying in " + RETRY_DELAY_SECONDS + " seconds...", e);
+					schedule(entry, RETRY_DELAY_SECONDS);
+				} else {
+					LOG.error("Pending upload of '" + entry.name + "' rejected. Moving it to '" + failedDir + "'...", e);
+					fail(entry);
+				}
+				return;
+			}
+			// the file is already uploaded, nothing from here on can make it to be uploaded again
+			LOG.info("Pending upload of '" + entry.name + "' finished");
+			synchronized (this) {
+				if (pending.get(target) == entry) {
+					pending.remove(target);
+				} else if (entry.fileId == null && pending.containsKey(target)) {
+					// the newer upload of the same file must update the file just created
+					Entry newer = pending.remove(target);
+					newer.fileId = uploaded.getId();
+					pending.put(newer.getTarget(), newer);
+					cache.deleteFile(newer.getPlaceholderId());
+					try {
+						writeJournal(newer);
+					} catch (IOException e) {
+						LOG.error("Journal of pending upload '" + newer.name + "' couldn't be updated. If it's replayed it will create the file '"
+								+ uploaded.getId() + "' again: " + e.getMessage());
+					}
+				}
+				if (entry.fileId == null) {
+					cache.deleteFile(entry.getPlaceholderId());
+				}
+			}
+			remove(entry);
+			updaterService.updateNow(uploaded.getId());
+		} finally {
+			synchronized (this) {
+				uploading.remove(target);
+				Entry next = chained.remove(target);
+				if (next != null) {
+					schedule(next, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the upload may succeed later. Errors of google drive come wrapped in runtime exceptions
+	 */
+	private static boolean isRetriable(Entry entry, Exception e) {
+		if (!entry.data.exists()) {
+			return false;
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return RetryPolicy.isRetriable((IOException) cause);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the entry to the dead letters, so it's not retried anymore nor replayed
+	 */
+	private void fail(Entry entry) {
+		synchronized (this) {
+			if (pending.get(entry.getTarget()) == entry) {
+				pending.remove(entry.getTarget());
+			}
+			if (entry.fileId == null) {
+				cache.deleteFile(entry.getPlaceholderId());
+			}
+		}
+		try {
+			FileUtils.moveFileToDirectory(new File(queueDir, entry.id + JOURNAL_EXTENSION), failedDir, false);
+			if (entry.data.exists()) {
+				FileUtils.moveFileToDirectory(entry.data, failedDir, false);
+			}
+		} catch (IOException e) {
+			LOG.error("Pending upload of '" + entry.name + "' couldn't be moved to '" + failedDir + "': " + e.getMessage());
+			remove(entry);
+		}
+	}
+
+	/**
+	 * @return the new file created as a server side copy of a file with the same content or <code>null</code> if there is none
+	 */
+	private com.google.api.services.drive.model.File copyFile(Entry entry, GFile file) {
+		GFile source = entry.md5 != null && entry.data.length() > 0 ? cache.getFileByMd5(entry.md5, entry.data.length()) : null;
+		if (source == null) {
+			return null;
+		}
+		LOG.info("Content of '" + entry.name + "' found in file '" + source.getName() + "'. Copying it...");
+		return googleDrive.copyFile(source.getId(), file);
+	}
+
+	private void remove(Entry entry) {
+		FileUtils.deleteQuietly(new File(queueDir, entry.id + JOURNAL_EXTENSION));
+		FileUtils.deleteQuietly(entry.data);
+	}
+
+	/**
+	 * Writes the journal of the entry. It's written to a temporary file first, so a crash never leaves a half written journal.
+	 */
+	private void writeJournal(Entry entry) throws IOException {
+		Properties journal = new Properties();
+		journal.setProperty("data", entry.data.getName());
+		journal.setProperty("name", entry.name);
+		journal.setProperty("lastModified", String.valueOf(entry.lastModified));
+		if (entry.parentId != null) {
+			journal.setProperty("parentId", entry.parentId);
+		}
+		if (entry.fileId != null) {
+			journal.setProperty("fileId", entry.fileId);
+		}
+		if (entry.length >= 0) {
+			journal.setProperty("length", String.valueOf(entry.length));
+		}
+		if (entry.md5 != null) {
+			journal.setProperty("md5", entry.md5);
+		}
+		File tmp = new File(queueDir, entry.id + JOURNAL_EXTENSION + ".tmp");
+		File journalFile = new File(queueDir, entry.id + JOURNAL_EXTENSION);
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(tmp);
+			journal.store(os, null);
+			os.getFD().sync();
+			os.close();
+			if (!tmp.renameTo(journalFile)) {
+				FileUtils.deleteQuietly(journalFile);
+				FileUtils.moveFile(tmp, journalFile);
+			}
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(tmp);
+			throw new IOException("Journal of pending upload '" + entry.name + "' couldn't be written: " + e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+	}
+
+	private Entry readJournal(File journalFile) throws IOException {
+		Properties journal = new Properties();
+		InputStream is = new FileInputStream(journalFile);
+		try {
+			journal.load(is);
+		} finally {
+			is.close();
+		}
+		String name = journalFile.getName();
+		Entry ret = new Entry(name.substring(0, name.length() - JOURNAL_EXTENSION.length()), new File(queueDir,
+				journal.getProperty("data")), journal.getProperty("name"), journal.getProperty("parentId"), journal.getProperty("fileId"),
+				Long.parseLong(journal.getProperty("lastModified")));
+		ret.length = Long.parseLong(journal.getProperty("length", "-1"));
+		ret.md5 = journal.getProperty("md5");
+		return ret;
+	}
+
+	/**
+	 * @return <code>true</code> if the content is the same that was journaled. Journals of older versions have no length and only
+	 *         had a checksum for new files, so what is not journaled is not checked
+	 */
+	private static boolean isIntact(Entry entry) throws IOException {
+		if (entry.length >= 0 && entry.data.length() != entry.length) {
+			return false;
+		}
+		if (entry.md5 == null) {
+			return true;
+		}
+		Md5OutputStream checksum = new Md5OutputStream(new NullOutputStream());
+		InputStream is = new FileInputStream(entry.data);
+		try {
+			IOUtils.copyLarge(is, checksum);
+		} finally {
+			is.close();
+		}
+		return entry.md5.equals(checksum.getMd5());
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+	}
+}
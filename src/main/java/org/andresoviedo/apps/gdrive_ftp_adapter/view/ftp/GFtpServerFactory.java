@@ -1,5 +1,6 @@
 package org.andresoviedo.apps.gdrive_ftp_adapter.view.ftp;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -18,16 +19,21 @@ import java.util.regex.Pattern;
 import org.andresoviedo.apps.gdrive_ftp_adapter.controller.Controller;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.Cache;
 import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.util.io.AbortableOutputStream;
 import org.andresoviedo.util.os.OSUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.ftpserver.ConnectionConfigFactory;
 import org.apache.ftpserver.FtpServerFactory;
 import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.command.Command;
 import org.apache.ftpserver.command.CommandFactoryFactory;
+import org.apache.ftpserver.command.impl.APPE;
 import org.apache.ftpserver.command.impl.MLSD;
 import org.apache.ftpserver.command.impl.RETR;
 import org.apache.ftpserver.command.impl.RNTO;
+import org.apache.ftpserver.command.impl.STOR;
+import org.apache.ftpserver.command.impl.STOU;
 import org.apache.ftpserver.ftplet.Authentication;
 import org.apache.ftpserver.ftplet.AuthenticationFailedException;
 import org.apache.ftpserver.ftplet.Authority;
@@ -89,6 +95,10 @@ public class GFtpServerFactory extends FtpServerFactory {
 		// MFMT for directories (default mina command doesn't support it)
 		CommandFactoryFactory ccf = new CommandFactoryFactory();
 		ccf.addCommand("MFMT", new FtpCommands.MFMT());
+		// uploads are committed only if the transfer was complete
+		ccf.addCommand("STOR", new FtpCommands.Upload(new STOR()));
+		ccf.addCommand("APPE", new FtpCommands.Upload(new APPE()));
+		ccf.addCommand("STOU", new FtpCommands.Upload(new STOU()));
 		setCommandFactory(ccf.createCommandFactory());
 
 		// set the port of the listener
@@ -277,7 +287,7 @@ public class GFtpServerFactory extends FtpServerFactory {
 
 			@Override
 			public long getSize() {
-				return gfile.getSize();
+				return controller.getSize(gfile);
 			}
 
 			@Override
@@ -316,7 +326,26 @@ public class GFtpServerFactory extends FtpServerFactory {
 
 			@Override
 			public OutputStream createOutputStream(long offset) throws IOException {
-				return controller.createOutputStream(this.unwrap(), offset);
+				final OutputStream os = controller.createOutputStream(this.unwrap(), offset);
+				if (!(os instanceof AbortableOutputStream)) {
+					return os;
+				}
+				return new FilterOutputStream(os) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+					}
+
+					@Override
+					public void close() throws IOException {
+						// if the data connection failed the upload must not be committed
+						if (FtpCommands.Upload.isTransferComplete()) {
+							super.close();
+						} else {
+							((AbortableOutputStream) os).abort();
+						}
+					}
+				};
 			}
 
 			@Override
@@ -742,6 +771,45 @@ public class GFtpServerFactory extends FtpServerFactory {
 	}
 
 	static class FtpCommands {
+
+		/**
+		 * Runs an upload command (STOR, APPE or STOU) keeping its session, so the stream of the upload knows how the transfer
+		 * ended when it's closed.
+		 */
+		public static class Upload implements Command {
+
+			private static final ThreadLocal<FtpIoSession> SESSION = new ThreadLocal<FtpIoSession>();
+
+			private final Command command;
+
+			public Upload(Command command) {
+				this.command = command;
+			}
+
+			@Override
+			public void execute(final FtpIoSession session, final FtpServerContext context, final FtpRequest request) throws IOException,
+					FtpException {
+				SESSION.set(session);
+				try {
+					command.execute(session, context, request);
+				} finally {
+					SESSION.remove();
+				}
+			}
+
+			/**
+			 * The upload commands close the stream before replying when all the data was received, and reply the error (426 or
+			 * 551) before closing it when the transfer failed. So the transfer is complete if the last reply is still the
+			 * preliminary one (150).
+			 * 
+			 * @return <code>true</code> if the data of the running upload was fully received
+			 */
+			static boolean isTransferComplete() {
+				FtpIoSession session = SESSION.get();
+				FtpReply reply = session != null ? session.getLastReply() : null;
+				return reply != null && reply.getCode() == FtpReply.REPLY_150_FILE_STATUS_OKAY;
+			}
+		}
 		public static class MFMT extends AbstractCommand {
 
 			private final Logger LOG = LoggerFactory.getLogger(MFMT.class);
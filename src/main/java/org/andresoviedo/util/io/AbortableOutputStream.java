@@ -0,0 +1,28 @@
+package org.andresoviedo.util.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream whose content is committed when it's closed, but that can also be closed without committing anything because the
+ * transfer failed.
+ *
+ * @author andresoviedo
+ */
+public abstract class AbortableOutputStream extends FilterOutputStream {
+
+	protected AbortableOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	/**
+	 * Closes the stream discarding what was not committed yet
+	 */
+	public abstract void abort() throws IOException;
+}
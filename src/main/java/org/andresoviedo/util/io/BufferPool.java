@@ -0,0 +1,68 @@
+package org.andresoviedo.util.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of direct (off-heap) buffers of the same size with a global budget. Buffers are allocated on demand and kept for reuse once
+ * released, so the memory is allocated only once and never goes through the java heap.
+ *
+ * @author andresoviedo
+ */
+public final class BufferPool {
+
+	private final int blockSize;
+
+	private final int maxBlocks;
+
+	private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	private int allocated;
+
+	private int used;
+
+	/**
+	 * @param blockSize
+	 *            size of every buffer
+	 * @param maxBytes
+	 *            max memory of all the buffers together
+	 */
+	public BufferPool(int blockSize, long maxBytes) {
+		this.blockSize = blockSize;
+		this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockSize);
+	}
+
+	/**
+	 * @return an empty buffer or <code>null</code> if the budget is exhausted
+	 */
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer ret = free.poll();
+		if (ret == null) {
+			if (allocated >= maxBlocks) {
+				return null;
+			}
+			ret = ByteBuffer.allocateDirect(blockSize);
+			allocated++;
+		}
+		used++;
+		ret.clear();
+		return ret;
+	}
+
+	public synchronized void release(ByteBuffer buffer) {
+		used--;
+		free.push(buffer);
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return bytes of the buffers acquired and not released yet
+	 */
+	public synchronized long getUsed() {
+		return (long) used * blockSize;
+	}
+}
@@ -0,0 +1,82 @@
+package org.andresoviedo.util.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stream over a local file that starts at any offset without reading the skipped bytes and that can hand the rest of the file
+ * to a channel with {@link FileChannel#transferTo(long, long, WritableByteChannel)} (sendfile on Linux for socket channels).
+ *
+ * @author andresoviedo
+ */
+public final class FileChannelInputStream extends InputStream {
+
+	private final FileChannel channel;
+
+	private long position;
+
+	private final long size;
+
+	@SuppressWarnings("resource")
+	public FileChannelInputStream(File file, long offset) throws IOException {
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		this.size = channel.size();
+		this.position = Math.min(offset, size);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= size) {
+			return -1;
+		}
+		int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = Math.max(0, Math.min(n, size - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, size - position);
+	}
+
+	/**
+	 * Transfer the rest of the file to the target without copying it to the java heap.
+	 *
+	 * @return the number of bytes transferred
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long start = position;
+		while (position < size) {
+			position += channel.transferTo(position, size - position, target);
+		}
+		return position - start;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
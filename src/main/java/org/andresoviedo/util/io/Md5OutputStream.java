@@ -0,0 +1,55 @@
+package org.andresoviedo.util.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the md5 checksum of the content while it's written to the underlying stream.
+ *
+ * @author andresoviedo
+ */
+public class Md5OutputStream extends FilterOutputStream {
+
+	private final MessageDigest digest;
+
+	private String md5;
+
+	public Md5OutputStream(OutputStream out) {
+		super(out);
+		try {
+			this.digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		digest.update((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		digest.update(b, off, len);
+	}
+
+	/**
+	 * @return the checksum in hexadecimal of everything written so far. Nothing else must be written after calling this
+	 */
+	public String getMd5() {
+		if (md5 == null) {
+			byte[] bytes = digest.digest();
+			StringBuilder ret = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			md5 = ret.toString();
+		}
+		return md5;
+	}
+}
@@ -0,0 +1,185 @@
+package org.andresoviedo.util.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keeps the content written in memory, in buffers of a {@link BufferPool}, so it can be read back later. When the stream reaches
+ * its own memory limit or the pool is exhausted, the rest of the content spills to a temporary file. What is already in memory
+ * stays there, so the content is the buffers followed by the file.
+ * <p>
+ * {@link #dispose()} must be called once the content is not needed anymore, to return the buffers to the pool.
+ *
+ * @author andresoviedo
+ */
+public final class SpoolOutputStream extends OutputStream {
+
+	private final BufferPool pool;
+
+	private final int maxBlocks;
+
+	private final String name;
+
+	private final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+
+	private File spillFile;
+
+	private OutputStream spill;
+
+	private long length;
+
+	private boolean closed;
+
+	/**
+	 * @param pool
+	 *            pool of the memory buffers
+	 * @param maxMemory
+	 *            max bytes of this stream kept in memory
+	 * @param name
+	 *            name of the content, used as suffix of the temporary file
+	 */
+	public SpoolOutputStream(BufferPool pool, long maxMemory, String name) {
+		this.pool = pool;
+		this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxMemory / pool.getBlockSize());
+		this.name = name;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Spool already closed");
+		}
+		length += len;
+		while (len > 0) {
+			if (spill != null) {
+				spill.write(b, off, len);
+				return;
+			}
+			ByteBuffer block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+			if (block == null || !block.hasRemaining()) {
+				block = blocks.size() < maxBlocks ? pool.acquire() : null;
+				if (block == null) {
+					spillFile = File.createTempFile("gdrive-synch-", ".upload." + name);
+					spill = new BufferedOutputStream(new FileOutputStream(spillFile), 64 * 1024);
+					continue;
+				}
+				blocks.add(block);
+			}
+			int n = Math.min(len, block.remaining());
+			block.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (spill != null) {
+			spill.close();
+		}
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return <code>true</code> if nothing has been written to disk
+	 */
+	public boolean isInMemory() {
+		return spillFile == null;
+	}
+
+	/**
+	 * @return a new stream of the whole content. The stream must be closed before
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (!closed) {
+			throw new IOException("Spool not closed yet");
+		}
+		List<InputStream> parts = new ArrayList<InputStream>(blocks.size() + 1);
+		for (ByteBuffer block : blocks) {
+			ByteBuffer content = block.duplicate();
+			content.flip();
+			parts.add(new ByteBufferInputStream(content));
+		}
+		if (spillFile != null) {
+			parts.add(new FileInputStream(spillFile));
+		}
+		return new SequenceInputStream(Collections.enumeration(parts));
+	}
+
+	/**
+	 * Discards the content, returning the buffers to the pool and deleting the temporary file
+	 */
+	public void dispose() {
+		closed = true;
+		IOUtils.closeQuietly(spill);
+		for (ByteBuffer block : blocks) {
+			pool.release(block);
+		}
+		blocks.clear();
+		FileUtils.deleteQuietly(spillFile);
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.min(Math.max(0, n), buffer.remaining());
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package org.andresoviedo.util.program;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Token bucket rate limiter without locks, implemented as a generic cell rate algorithm (GCRA): a single atomic value keeps the
+ * theoretical arrival time of the next request. Every request moves it one emission interval (1 / rate) forward, and it waits
+ * only if it's more than <code>burst</code> intervals ahead of now. Threads don't block each other, they only sleep their own
+ * wait.
+ * <p>
+ * Requests have the {@link Priority} of the thread that makes them. Lower priorities can't take the last tokens of the bucket,
+ * they are kept for higher ones, so a user waiting for a listing doesn't queue behind a background crawl. The reserved part
+ * shrinks while a request waits and disappears after <code>aging</code>, so low priorities always make progress.
+ *
+ * @author andresoviedo
+ */
+public final class RateLimiter {
+
+	private static final Log LOG = LogFactory.getLog(RateLimiter.class);
+
+	/**
+	 * Max nanos a low priority request sleeps before checking the bucket again
+	 */
+	private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+	public enum Priority {
+		/**
+		 * A client is waiting for the response (ftp commands)
+		 */
+		INTERACTIVE(0),
+		/**
+		 * The response will probably be needed soon (prefetching the next files)
+		 */
+		PREFETCH(0.25),
+		/**
+		 * Synchronization of the metadata cache (changes and folder crawling)
+		 */
+		SYNC(0.5),
+		/**
+		 * Work nobody is waiting for (uploads already confirmed to the client)
+		 */
+		MAINTENANCE(0.75);
+
+		/**
+		 * Part of the bucket kept for higher priorities
+		 */
+		private final double reserved;
+
+		private Priority(double reserved) {
+			this.reserved = reserved;
+		}
+	}
+
+	/**
+	 * Priority of each thread. Other threads can change it through {@link #currentPriority()}
+	 */
+	private static final ThreadLocal<AtomicReference<Priority>> PRIORITY = new ThreadLocal<AtomicReference<Priority>>() {
+		@Override
+		protected AtomicReference<Priority> initialValue() {
+			return new AtomicReference<Priority>(Priority.INTERACTIVE);
+		}
+	};
+
+	/**
+	 * Nanos between 2 requests at the sustained rate
+	 */
+	private final long interval;
+
+	/**
+	 * Nanos the theoretical arrival time can be ahead of now without waiting (the burst)
+	 */
+	private final long tolerance;
+
+	/**
+	 * Nanos a low priority request waits until it competes as an interactive one
+	 */
+	private final long aging;
+
+	private final AtomicLong theoreticalArrival;
+
+	private final Stats[] stats = new Stats[Priority.values().length];
+
+	private static final class Stats {
+		private final AtomicLong acquired = new AtomicLong();
+		private final AtomicLong delayed = new AtomicLong();
+		private final AtomicLong totalWait = new AtomicLong();
+		private final AtomicLong maxWait = new AtomicLong();
+
+		private void onAcquired(long wait) {
+			acquired.incrementAndGet();
+			if (wait <= 0) {
+				return;
+			}
+			delayed.incrementAndGet();
+			totalWait.addAndGet(wait);
+			long max;
+			while ((max = maxWait.get()) < wait && !maxWait.compareAndSet(max, wait)) {
+				// retry
+			}
+		}
+	}
+
+	/**
+	 * @param rate
+	 *            sustained requests per second
+	 * @param burst
+	 *            requests allowed at once after a period of inactivity
+	 */
+	public RateLimiter(double rate, int burst) {
+		this(rate, burst, 10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param rate
+	 *            sustained requests per second
+	 * @param burst
+	 *            requests allowed at once after a period of inactivity
+	 * @param aging
+	 *            time after which a waiting request competes as an interactive one whatever its priority
+	 */
+	public RateLimiter(double rate, int burst, long aging, TimeUnit unit) {
+		this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		this.tolerance = interval * Math.max(1, burst);
+		this.aging = Math.max(1, unit.toNanos(aging));
+		this.theoreticalArrival = new AtomicLong(System.nanoTime());
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new Stats();
+		}
+	}
+
+	/**
+	 * Sets the priority of the requests made by the current thread
+	 *
+	 * @return the previous priority
+	 */
+	public static Priority setPriority(Priority priority) {
+		return PRIORITY.get().getAndSet(priority);
+	}
+
+	public static Priority getPriority() {
+		return PRIORITY.get().get();
+	}
+
+	/**
+	 * @return the priority of the current thread, that another thread can raise while this one waits (i.e. when a client starts
+	 *         waiting for a background task). The change is seen by the next check of the bucket
+	 */
+	public static AtomicReference<Priority> currentPriority() {
+		return PRIORITY.get();
+	}
+
+	/**
+	 * Waits until the request is allowed.
+	 *
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while waiting (i.e. the ftp session was closed). The permit is given back
+	 */
+	public void acquire() throws InterruptedIOException {
+		tryAcquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Waits until the request is allowed, if that happens before the timeout. Nothing is consumed if it doesn't.
+	 *
+	 * @return <code>true</code> if the request is allowed, <code>false</code> if the wait would be longer than the timeout
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while waiting. The permit is given back
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedIOException {
+		AtomicReference<Priority> currentPriority = PRIORITY.get();
+		Priority priority;
+		long maxWaitNanos = unit.toNanos(timeout);
+		long start = System.nanoTime();
+		long waited;
+		long wait;
+		boolean polled = false;
+		while (true) {
+			priority = currentPriority.get();
+			long now = System.nanoTime();
+			waited = now - start;
+			long reserved = (long) (tolerance * priority.reserved * Math.max(0, 1 - (double) waited / aging));
+			long tat = theoreticalArrival.get();
+			long next = Math.max(tat, now) + interval;
+			wait = next - (tolerance - reserved) - now;
+			if (wait > maxWaitNanos - waited) {
+				return false;
+			}
+			if (reserved > 0 && wait > 0) {
+				// low priorities don't book a slot in the future, they wait until the bucket has tokens to spare
+				sleep(Math.min(wait, POLL_INTERVAL));
+				polled = true;
+				continue;
+			}
+			if (theoreticalArrival.compareAndSet(tat, next)) {
+				break;
+			}
+		}
+		stats[priority.ordinal()].onAcquired((polled ? waited : 0) + Math.max(0, wait));
+		if (wait <= 0) {
+			return true;
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Reached limit! sleeping " + TimeUnit.NANOSECONDS.toMillis(wait) + " millis...");
+		}
+		try {
+			sleep(wait);
+			return true;
+		} catch (InterruptedIOException e) {
+			// the request won't be done, so the next ones can go earlier
+			theoreticalArrival.addAndGet(-interval);
+			stats[priority.ordinal()].acquired.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private static void sleep(long nanos) throws InterruptedIOException {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+		}
+	}
+
+	/**
+	 * @return requests allowed so far
+	 */
+	public long getAcquired() {
+		long ret = 0;
+		for (Priority priority : Priority.values()) {
+			ret += getAcquired(priority);
+		}
+		return ret;
+	}
+
+	public long getAcquired(Priority priority) {
+		return stats[priority.ordinal()].acquired.get();
+	}
+
+	/**
+	 * @return requests that had to wait
+	 */
+	public long getDelayed() {
+		long ret = 0;
+		for (Priority priority : Priority.values()) {
+			ret += getDelayed(priority);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return requests of the priority that had to wait
+	 */
+	public long getDelayed(Priority priority) {
+		return stats[priority.ordinal()].delayed.get();
+	}
+
+	public long getTotalWaitMillis(Priority priority) {
+		return TimeUnit.NANOSECONDS.toMillis(stats[priority.ordinal()].totalWait.get());
+	}
+
+	public long getMaxWaitMillis() {
+		long ret = 0;
+		for (Priority priority : Priority.values()) {
+			ret = Math.max(ret, getMaxWaitMillis(priority));
+		}
+		return ret;
+	}
+
+	public long getMaxWaitMillis(Priority priority) {
+		return TimeUnit.NANOSECONDS.toMillis(stats[priority.ordinal()].maxWait.get());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder ret = new StringBuilder("RateLimiter [");
+		for (Priority priority : Priority.values()) {
+			ret.append(priority == Priority.INTERACTIVE ? "" : ", ").append(priority.name().toLowerCase()).append("=")
+					.append(getAcquired(priority)).append(" (delayed=").append(getDelayed(priority)).append(", totalWait=")
+					.append(getTotalWaitMillis(priority)).append("ms, maxWait=").append(getMaxWaitMillis(priority)).append("ms)");
+		}
+		return ret.append("]").toString();
+	}
+}
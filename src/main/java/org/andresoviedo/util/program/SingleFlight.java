@@ -0,0 +1,144 @@
+package org.andresoviedo.util.program;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Coalesces concurrent identical calls: the first call of a key (the leader) runs, and the calls of the same key that arrive
+ * while it's running wait for it and get its result or its exception, instead of running again. Nothing is cached, a call that
+ * arrives after the leader has finished runs again.
+ * <p>
+ * The result is shared by all the callers of the flight, so it must not be modified. If the leader fails because its thread was
+ * interrupted (i.e. its ftp session was closed) the waiting callers don't get that error, one of them runs the call again.
+ *
+ * @author andresoviedo
+ */
+public final class SingleFlight<K, V> {
+
+	private static final Log LOG = LogFactory.getLog(SingleFlight.class);
+
+	private final String name;
+
+	private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	private final AtomicLong calls = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public SingleFlight(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Runs the call, or waits for the same call if it's already running.
+	 *
+	 * @param key
+	 *            identifies the call, calls with equal keys must give the same result
+	 * @param call
+	 *            the call
+	 * @return the result of the call, shared with the other callers of the same flight
+	 * @throws RuntimeException
+	 *             the exception of the call, wrapped in a RuntimeException if it's checked. Also if the thread is interrupted
+	 *             while waiting (the interrupted status is kept)
+	 */
+	public V execute(K key, Callable<V> call) {
+		calls.incrementAndGet();
+		while (true) {
+			FutureTask<V> flight = new FutureTask<V>(call);
+			FutureTask<V> running = flights.putIfAbsent(key, flight);
+			if (running == null) {
+				try {
+					flight.run();
+				} finally {
+					flights.remove(key, flight);
+				}
+				return get(flight);
+			}
+			coalesced.incrementAndGet();
+			if (LOG.isTraceEnabled()) {
+				LOG.trace(name + ": waiting for the running call of " + key);
+			}
+			try {
+				return get(running);
+			} catch (RuntimeException e) {
+				if (!isInterruption(e) || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				// the leader was cancelled, not the call
+				LOG.debug(name + ": running call of " + key + " was interrupted. Calling again...");
+				coalesced.decrementAndGet();
+			}
+		}
+	}
+
+	private static <V> V get(FutureTask<V> flight) {
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static boolean isInterruption(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof InterruptedException || cause instanceof InterruptedIOException
+					|| cause instanceof ClosedByInterruptException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return calls made so far
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * @return calls that got the result of another one instead of running
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return part of the calls that didn't run (0 to 1)
+	 */
+	public double getCoalescingRatio() {
+		long count = calls.get();
+		return count == 0 ? 0 : (double) coalesced.get() / count;
+	}
+
+	/**
+	 * @return calls running now
+	 */
+	public int getRunning() {
+		return flights.size();
+	}
+
+	@Override
+	public String toString() {
+		return name + " [calls=" + calls + ", coalesced=" + coalesced + " (" + Math.round(getCoalescingRatio() * 100)
+				+ "%), running=" + getRunning() + "]";
+	}
+}
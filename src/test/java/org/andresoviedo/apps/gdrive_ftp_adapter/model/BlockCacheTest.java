@@ -0,0 +1,164 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.SegmentedDownload.RangeSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+	private static final String ACCOUNT = "test-block-cache";
+
+	private static final int BLOCK_SIZE = 16;
+
+	private final byte[] content = new byte[BLOCK_SIZE * 20 + 5];
+
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+	private final RangeSource source = new RangeSource() {
+		@Override
+		public InputStream open(long from, long to) throws IOException {
+			requests.add(from + "-" + to);
+			return new ByteArrayInputStream(content, (int) from, (int) (to - from + 1));
+		}
+	};
+
+	private Properties configuration;
+
+	private GFile file;
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		configuration = new Properties();
+		configuration.setProperty("account", ACCOUNT);
+		configuration.setProperty("blockcache.blockSize", String.valueOf(BLOCK_SIZE));
+		configuration.setProperty("blockcache.threshold", "0");
+		file = new GFile("video.mkv");
+		file.setId("id");
+		file.setMd5Checksum("md5");
+		file.setSize(content.length);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(new File("data" + File.separator + ACCOUNT));
+	}
+
+	@Test
+	public void testReadFromOffset() throws IOException {
+		BlockCache cache = new BlockCache(configuration);
+		int offset = BLOCK_SIZE * 18 + 3;
+		byte[] expected = new byte[content.length - offset];
+		System.arraycopy(content, offset, expected, 0, expected.length);
+
+		InputStream is = cache.open(file, offset, source);
+		Assert.assertArrayEquals(expected, IOUtils.toByteArray(is));
+		is.close();
+
+		// only the last 3 blocks were downloaded
+		Assert.assertEquals(Collections.singletonList(BLOCK_SIZE * 18 + "-" + (content.length - 1)), requests);
+		Assert.assertEquals(content.length - BLOCK_SIZE * 18, cache.getSize());
+	}
+
+	@Test
+	public void testCachedBlocksAreNotFetchedAgain() throws IOException {
+		BlockCache cache = new BlockCache(configuration);
+		InputStream is = cache.open(file, 0, source);
+		Assert.assertArrayEquals(content, IOUtils.toByteArray(is));
+		is.close();
+		requests.clear();
+
+		// bitmap survives restarts
+		is = new BlockCache(configuration).open(file, BLOCK_SIZE * 5, source);
+		IOUtils.toByteArray(is);
+		is.close();
+		Assert.assertTrue(requests.toString(), requests.isEmpty());
+	}
+
+	@Test
+	public void testUnfinishedBitmapIsDiscarded() throws IOException {
+		BlockCache cache = new BlockCache(configuration);
+		InputStream is = cache.open(file, 0, source);
+		IOUtils.toByteArray(is);
+		is.close();
+		requests.clear();
+
+		// crash while writing the bitmap
+		File tmpBitmap = new File("data" + File.separator + ACCOUNT + File.separator + "blocks", "id-md5.bitmap.tmp");
+		FileUtils.writeByteArrayToFile(tmpBitmap, new byte[] { 1 });
+		is = new BlockCache(configuration).open(file, 0, source);
+		Assert.assertArrayEquals(content, IOUtils.toByteArray(is));
+		is.close();
+		Assert.assertFalse(tmpBitmap.exists());
+		Assert.assertTrue(requests.toString(), requests.isEmpty());
+	}
+
+	@Test
+	public void testFailureIsReportedToAllWaitingReaders() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final RangeSource failingSource = new RangeSource() {
+			@Override
+			public InputStream open(long from, long to) throws IOException {
+				requests.add(from + "-" + to);
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IOException("Service unavailable");
+			}
+		};
+		final BlockCache cache = new BlockCache(configuration);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] readers = new Thread[2];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						InputStream is = cache.open(file, 0, failingSource);
+						try {
+							is.read(new byte[BLOCK_SIZE]);
+						} finally {
+							is.close();
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			readers[i].start();
+		}
+		// both readers waiting for the same block
+		Thread.sleep(200);
+		release.countDown();
+
+		for (Thread reader : readers) {
+			reader.join(TimeUnit.SECONDS.toMillis(5));
+			Assert.assertFalse("Reader still waiting for the failed block", reader.isAlive());
+		}
+		Assert.assertEquals(2, errors.size());
+		for (Throwable error : errors) {
+			Assert.assertTrue(String.valueOf(error), error instanceof IOException);
+		}
+		Assert.assertEquals(Collections.singletonList("0-" + (BLOCK_SIZE * 4 - 1)), requests);
+	}
+}
@@ -0,0 +1,188 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentCacheTest {
+
+	private static final String ACCOUNT = "test-content-cache";
+
+	private Properties configuration;
+
+	@Before
+	public void setUp() {
+		configuration = new Properties();
+		configuration.setProperty("account", ACCOUNT);
+		configuration.setProperty("content.cache.size", "250");
+		configuration.setProperty("content.cache.maxFileSize", "100");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(new File("data" + File.separator + ACCOUNT));
+	}
+
+	@Test
+	public void testStoreAndGet() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile file = createFile("a", 100);
+		Assert.assertNull(cache.get(file));
+
+		InputStream is = cache.store(file, new ByteArrayInputStream(content(100)));
+		Assert.assertArrayEquals(content(100), IOUtils.toByteArray(is));
+		is.close();
+
+		File cached = cache.get(file);
+		Assert.assertNotNull(cached);
+		Assert.assertArrayEquals(content(100), FileUtils.readFileToByteArray(cached));
+
+		// same content in another folder is stored once
+		GFile copy = createFile("b", 100);
+		Assert.assertEquals(cached, cache.get(copy));
+
+		// index survives restarts
+		Assert.assertNotNull(new ContentCache(configuration).get(file));
+	}
+
+	@Test
+	public void testStoreDownloadedFile() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile file = createFile("a", 100);
+		File download = File.createTempFile("gdrive-synch-", ".download");
+		FileUtils.writeByteArrayToFile(download, content(100));
+
+		File cached = cache.store(file, download);
+		Assert.assertNotEquals(download, cached);
+		Assert.assertFalse(download.exists());
+		Assert.assertEquals(cached, cache.get(file));
+		Assert.assertArrayEquals(content(100), FileUtils.readFileToByteArray(cached));
+		Assert.assertEquals(100, cache.getSize());
+	}
+
+	@Test
+	public void testMissingFileIsRemoved() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile file = createFile("a", 100);
+		IOUtils.toByteArray(cache.store(file, new ByteArrayInputStream(content(100))));
+		File cached = cache.get(file);
+		Assert.assertEquals(100, cache.getSize());
+
+		Assert.assertTrue(cached.delete());
+		Assert.assertNull(cache.get(file));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testConcurrentCommitsOfTheSameContent() throws Exception {
+		final ContentCache cache = new ContentCache(configuration);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final GFile file = createFile("f" + i, 100);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						IOUtils.toByteArray(cache.store(file, new ByteArrayInputStream(content(100))));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// stored once
+		Assert.assertEquals(100, cache.getSize());
+	}
+
+	@Test
+	public void testNotCachedWhenIncomplete() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile file = createFile("a", 100);
+		InputStream is = cache.store(file, new ByteArrayInputStream(content(100)));
+		is.read(new byte[10]);
+		is.close();
+		Assert.assertNull(cache.get(file));
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile file = createFile("a", 100);
+		file.setMd5Checksum("00000000000000000000000000000000");
+		IOUtils.toByteArray(cache.store(file, new ByteArrayInputStream(content(100))));
+		Assert.assertNull(cache.get(file));
+	}
+
+	@Test
+	public void testLruEviction() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile[] files = { createFile("1", 99), createFile("2", 98), createFile("3", 97) };
+		for (GFile file : files) {
+			IOUtils.toByteArray(cache.store(file, new ByteArrayInputStream(content((int) file.getSize()))));
+			Thread.sleep(5);
+		}
+		Assert.assertNull(cache.get(files[0]));
+		Assert.assertNotNull(cache.get(files[1]));
+		Assert.assertNotNull(cache.get(files[2]));
+		Assert.assertEquals(98 + 97, cache.getSize());
+	}
+
+	@Test
+	public void testExportsAreInvalidated() throws Exception {
+		ContentCache cache = new ContentCache(configuration);
+		GFile document = new GFile("document");
+		document.setId("doc");
+		document.setMimeType("application/vnd.google-apps.document");
+		document.setLastModified(1);
+		Assert.assertEquals(0, cache.getExportSize(document));
+
+		IOUtils.toByteArray(cache.store(document, new ByteArrayInputStream(content(50))));
+		Assert.assertNotNull(cache.get(document));
+		Assert.assertEquals(50, cache.getExportSize(document));
+		// sizes are loaded on startup
+		Assert.assertEquals(50, new ContentCache(configuration).getExportSize(document));
+
+		// new revision of the document
+		GFile updated = new GFile("document");
+		updated.setId("doc");
+		updated.setMimeType("application/vnd.google-apps.document");
+		updated.setLastModified(2);
+		Assert.assertNull(cache.get(updated));
+
+		cache.invalidate("doc");
+		Assert.assertNull(cache.get(document));
+		Assert.assertEquals(0, cache.getExportSize(document));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	private static GFile createFile(String id, int size) throws Exception {
+		GFile file = new GFile("file-" + id);
+		file.setId(id);
+		file.setSize(size);
+		file.setMd5Checksum(ContentCache.toHex(MessageDigest.getInstance("MD5").digest(content(size))));
+		return file;
+	}
+
+	private static byte[] content(int size) {
+		byte[] ret = new byte[size];
+		for (int i = 0; i < size; i++) {
+			ret[i] = (byte) i;
+		}
+		return ret;
+	}
+}
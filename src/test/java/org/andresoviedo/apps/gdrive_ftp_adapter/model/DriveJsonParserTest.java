@@ -0,0 +1,107 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GChange;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.api.services.drive.model.User;
+
+public class DriveJsonParserTest {
+
+	private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+	@Test
+	public void testFilesAreTheSameAsFromTheModel() throws IOException {
+		List<File> files = Arrays.asList(file("1", "file.txt", "text/plain"), file("2", "folder", "application/vnd.google-apps.folder"),
+				file("3", "document", "application/vnd.google-apps.document"), new File().setId("4").setOriginalFilename("untitled")
+						.setParents(Collections.<ParentReference> emptyList()).setLabels(new File.Labels().setTrashed(true)));
+		FileList page = new FileList().setItems(files).setNextPageToken("next");
+
+		List<GFile> parsed = new ArrayList<GFile>();
+		Assert.assertEquals("next", DriveJsonParser.parseFileList(toJson(page), parsed));
+		Assert.assertEquals(files.size(), parsed.size());
+		for (int i = 0; i < files.size(); i++) {
+			Assert.assertEquals(describe(GFile.create(files.get(i))), describe(parsed.get(i)));
+		}
+		Assert.assertEquals(Collections.singleton("root"), parsed.get(0).getParents());
+		Assert.assertTrue(parsed.get(1).isDirectory());
+		Assert.assertEquals("https://docs.google.com/export/3.docx", parsed.get(2).getDownloadUrl().toString());
+		Assert.assertEquals(Collections.singleton("trashed"), parsed.get(3).getLabels());
+	}
+
+	@Test
+	public void testLastPageAndEmptyPage() throws IOException {
+		List<GFile> parsed = new ArrayList<GFile>();
+		Assert.assertNull(DriveJsonParser.parseFileList(toJson(new FileList().setItems(Arrays.asList(file("1", "a", "text/plain")))),
+				parsed));
+		Assert.assertEquals(1, parsed.size());
+		Assert.assertNull(DriveJsonParser.parseFileList(toJson(new FileList()), parsed));
+		Assert.assertEquals(1, parsed.size());
+	}
+
+	@Test
+	public void testChanges() throws IOException {
+		ChangeList page = new ChangeList().setItems(Arrays.asList(
+				new Change().setId(10L).setFileId("1").setDeleted(false).setFile(file("1", "file.txt", "text/plain")),
+				new Change().setId(11L).setFileId("2").setDeleted(true)));
+
+		List<GChange> parsed = new ArrayList<GChange>();
+		Assert.assertNull(DriveJsonParser.parseChangeList(toJson(page), parsed));
+		Assert.assertEquals(2, parsed.size());
+		Assert.assertEquals(10, parsed.get(0).getId());
+		Assert.assertEquals("1", parsed.get(0).getFileId());
+		Assert.assertFalse(parsed.get(0).isDeleted());
+		Assert.assertEquals(describe(GFile.create(page.getItems().get(0).getFile())), describe(parsed.get(0).getFile()));
+		Assert.assertEquals(11, parsed.get(1).getId());
+		Assert.assertTrue(parsed.get(1).isDeleted());
+		Assert.assertNull(parsed.get(1).getFile());
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidJson() throws IOException {
+		DriveJsonParser.parseFileList(new ByteArrayInputStream("{\"items\":[{\"id\":".getBytes("UTF-8")), new ArrayList<GFile>());
+	}
+
+	private static File file(String id, String title, String mimeType) {
+		DateTime date = new DateTime(1400000000000L + Integer.parseInt(id));
+		File ret = new File().setId(id).setTitle(title).setOriginalFilename(title).setMimeType(mimeType).setModifiedDate(date)
+				.setLastViewedByMeDate(date).setLabels(new File.Labels().setTrashed(false).setStarred(true))
+				.setParents(Arrays.asList(new ParentReference().setId("0Broot").setIsRoot(true)))
+				// not parsed, must be skipped
+				.setOwners(Arrays.asList(new User().setDisplayName("Andres").setPicture(new User.Picture().setUrl("http://photo"))));
+		if ("application/vnd.google-apps.document".equals(mimeType)) {
+			ret.setExportLinks(Collections.singletonMap("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+					"https://docs.google.com/export/" + id + ".docx"));
+		} else if (!"application/vnd.google-apps.folder".equals(mimeType)) {
+			ret.setFileSize(1000L + Integer.parseInt(id)).setMd5Checksum("md5" + id).setDownloadUrl("https://doc/" + id);
+		}
+		return ret;
+	}
+
+	private static InputStream toJson(Object page) throws IOException {
+		return new ByteArrayInputStream(JSON_FACTORY.toByteArray(page));
+	}
+
+	private static String describe(GFile file) {
+		return Arrays.asList(file.getId(), file.getName(), file.getLastModified(), file.getLength(), file.isDirectory(),
+				file.getMd5Checksum(), file.getMimeType(), file.getDownloadUrl(), file.getParents(), file.getLabels(),
+				file.getLastViewedByMeDate()).toString();
+	}
+}
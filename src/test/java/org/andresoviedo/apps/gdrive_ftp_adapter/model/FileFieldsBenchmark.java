@@ -0,0 +1,257 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.api.services.drive.model.Permission;
+import com.google.api.services.drive.model.User;
+
+/**
+ * Compares a page of 1000 files of a listing as google drive returns it without field mask (before) and with the fields
+ * requested now (after, see {@link GoogleDrive#FILE_FIELDS}):
+ * <ul>
+ * <li>bytes: size of the json</li>
+ * <li>gzip: size of the json as it goes through the network</li>
+ * <li>parse(ms): time to parse the page into {@link GFile}</li>
+ * <li>alloc(KB): memory allocated to parse the page</li>
+ * </ul>
+ * The last row parses the page with the fields requested now straight into {@link GFile} with {@link DriveJsonParser}, without
+ * the model classes of the client library.
+ * The files projected with the mask must give the same {@link GFile} as the full ones, otherwise the mask misses a field and the
+ * benchmark fails. Usage: <code>FileFieldsBenchmark [iterations]</code> (default 50).
+ */
+public class FileFieldsBenchmark {
+
+	private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+	private static final int FILES = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		String full = JSON_FACTORY.toString(createPage());
+		String projected = JSON_FACTORY.toString(project(JSON_FACTORY.fromString(full, GenericJson.class),
+				parseMask("items(" + GoogleDrive.FILE_FIELDS + "),nextPageToken")));
+		verify(full, projected);
+
+		System.out.println("fields\tbytes\tgzip\tparse(ms)\talloc(KB)");
+		// warm up
+		parse(full, iterations, false);
+		parse(projected, iterations, false);
+		parse(projected, iterations, true);
+		System.out.println("full\t" + full.length() + "\t" + gzip(full) + "\t" + parse(full, iterations, false));
+		System.out.println("mask\t" + projected.length() + "\t" + gzip(projected) + "\t" + parse(projected, iterations, false));
+		System.out.println("stream\t" + projected.length() + "\t" + gzip(projected) + "\t" + parse(projected, iterations, true));
+	}
+
+	private static void verify(String full, String projected) throws IOException {
+		List<File> fullFiles = JSON_FACTORY.fromString(full, FileList.class).getItems();
+		List<File> projectedFiles = JSON_FACTORY.fromString(projected, FileList.class).getItems();
+		for (int i = 0; i < fullFiles.size(); i++) {
+			String expected = describe(GFile.create(fullFiles.get(i)));
+			String actual = describe(GFile.create(projectedFiles.get(i)));
+			if (!expected.equals(actual)) {
+				throw new IllegalStateException("Field missing in the mask: expected " + expected + " but was " + actual);
+			}
+		}
+		List<GFile> streamed = new ArrayList<GFile>();
+		DriveJsonParser.parseFileList(new ByteArrayInputStream(projected.getBytes("UTF-8")), streamed);
+		for (int i = 0; i < fullFiles.size(); i++) {
+			String expected = describe(GFile.create(fullFiles.get(i)));
+			String actual = describe(streamed.get(i));
+			if (!expected.equals(actual)) {
+				throw new IllegalStateException("Streamed file differs: expected " + expected + " but was " + actual);
+			}
+		}
+	}
+
+	private static String describe(GFile file) {
+		return Arrays.asList(file.getId(), file.getName(), file.getLastModified(), file.getLength(), file.isDirectory(),
+				file.getMd5Checksum(), file.getMimeType(), file.getDownloadUrl(), file.getParents(), file.getLabels(),
+				file.getLastViewedByMeDate()).toString();
+	}
+
+	/**
+	 * @return average millis and KB allocated to parse the page into {@link GFile}
+	 */
+	private static String parse(String json, int iterations, boolean streaming) throws IOException {
+		byte[] bytes = json.getBytes("UTF-8");
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (streaming) {
+				DriveJsonParser.parseFileList(new ByteArrayInputStream(bytes), new ArrayList<GFile>(FILES));
+			} else {
+				GFile.create(JSON_FACTORY.fromInputStream(new ByteArrayInputStream(bytes), FileList.class).getItems(), 0);
+			}
+		}
+		double millis = (System.nanoTime() - start) / 1000000d / iterations;
+		return String.format("%.1f\t%d", millis, (getAllocatedBytes() - allocated) / 1024 / iterations);
+	}
+
+	private static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	private static int gzip(String json) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(ret);
+		gzip.write(json.getBytes("UTF-8"));
+		gzip.close();
+		return ret.size();
+	}
+
+	/**
+	 * @return a page of files with the fields google drive returns by default
+	 */
+	private static FileList createPage() {
+		List<File> files = new ArrayList<File>(FILES);
+		User owner = new User().setKind("drive#user").setDisplayName("Andres Oviedo").setIsAuthenticatedUser(true)
+				.setPermissionId("01234567890123456789").setEmailAddress("andresoviedo@example.com")
+				.setPicture(new User.Picture().setUrl("https://lh3.googleusercontent.com/-abcdefghijk/AAAAAAAAAAI/AAAAAAAAAAA/photo.jpg"));
+		for (int i = 0; i < FILES; i++) {
+			String id = "0B" + String.format("%026d", i);
+			File file = new File();
+			file.setKind("drive#file");
+			file.setId(id);
+			file.setEtag("\"abcdefghijklmnopqrstuvwxyz0/MTQ" + i + "\"");
+			file.setSelfLink("https://www.googleapis.com/drive/v2/files/" + id);
+			file.setWebContentLink("https://docs.google.com/uc?id=" + id + "&export=download");
+			file.setAlternateLink("https://drive.google.com/file/d/" + id + "/view?usp=drivesdk");
+			file.setEmbedLink("https://drive.google.com/file/d/" + id + "/preview?usp=drivesdk");
+			file.setIconLink("https://ssl.gstatic.com/docs/doclist/images/icon_10_generic_list.png");
+			file.setThumbnailLink("https://lh3.googleusercontent.com/" + id + "=s220");
+			file.setTitle("IMG_" + i + ".jpg");
+			file.setOriginalFilename("IMG_" + i + ".jpg");
+			file.setFileExtension("jpg");
+			file.setMimeType(i % 10 == 0 ? "application/vnd.google-apps.folder" : "image/jpeg");
+			file.setLabels(new File.Labels().setStarred(false).setHidden(false).setTrashed(false).setRestricted(false)
+					.setViewed(true));
+			DateTime date = new DateTime(1400000000000L + i * 1000L);
+			file.setCreatedDate(date);
+			file.setModifiedDate(date);
+			file.setModifiedByMeDate(date);
+			file.setLastViewedByMeDate(date);
+			file.setMarkedViewedByMeDate(date);
+			file.setVersion(1000L + i);
+			file.setParents(Arrays.asList(new ParentReference().setKind("drive#parentReference").setId("0BparentFolderId")
+					.setSelfLink("https://www.googleapis.com/drive/v2/files/" + id + "/parents/0BparentFolderId")
+					.setParentLink("https://www.googleapis.com/drive/v2/files/0BparentFolderId").setIsRoot(false)));
+			if (i % 10 != 0) {
+				file.setDownloadUrl("https://doc-0s-00-docs.googleusercontent.com/docs/securesc/abcdefghijklmnop/" + id
+						+ "?e=download&gd=true");
+				file.setMd5Checksum(String.format("%032x", i));
+				file.setFileSize(1000000L + i);
+				file.setQuotaBytesUsed(1000000L + i);
+				file.setHeadRevisionId("0B" + i + "RevisionIdabcdefghijklmnop");
+			}
+			file.setUserPermission(new Permission().setKind("drive#permission").setEtag("\"abcdefghijklmnop/xyz\"").setId("me")
+					.setSelfLink("https://www.googleapis.com/drive/v2/files/" + id + "/permissions/me").setRole("owner")
+					.setType("user"));
+			file.setOwnerNames(Arrays.asList("Andres Oviedo"));
+			file.setOwners(Arrays.asList(owner));
+			file.setLastModifyingUserName("Andres Oviedo");
+			file.setLastModifyingUser(owner);
+			file.setEditable(true);
+			file.setCopyable(true);
+			file.setWritersCanShare(true);
+			file.setShared(false);
+			file.setExplicitlyTrashed(false);
+			file.setAppDataContents(false);
+			file.setSpaces(Arrays.asList("drive"));
+			files.add(file);
+		}
+		return new FileList().setKind("drive#fileList").setEtag("\"abcdefghijklmnop\"").setItems(files)
+				.setNextPageToken("EAIaGAoSMDBCcGFyZW50Rm9sZGVySWQSAhgBIgA=");
+	}
+
+	/**
+	 * Parses a field mask as google drive does: <code>a,b(c,d),e/f</code>
+	 *
+	 * @return the fields, with the mask of their own fields or <code>null</code> to keep them whole
+	 */
+	static Map<String, Object> parseMask(String mask) {
+		int[] pos = { 0 };
+		Map<String, Object> ret = parseFields(mask, pos);
+		if (pos[0] != mask.length()) {
+			throw new IllegalArgumentException("Invalid mask '" + mask + "' at " + pos[0]);
+		}
+		return ret;
+	}
+
+	private static Map<String, Object> parseFields(String mask, int[] pos) {
+		Map<String, Object> ret = new HashMap<String, Object>();
+		while (true) {
+			parseField(mask, pos, ret);
+			if (pos[0] >= mask.length() || mask.charAt(pos[0]) != ',') {
+				return ret;
+			}
+			pos[0]++;
+		}
+	}
+
+	private static void parseField(String mask, int[] pos, Map<String, Object> fields) {
+		int start = pos[0];
+		while (pos[0] < mask.length() && ",()/".indexOf(mask.charAt(pos[0])) < 0) {
+			pos[0]++;
+		}
+		String name = mask.substring(start, pos[0]);
+		Map<String, Object> subfields = null;
+		if (pos[0] < mask.length() && mask.charAt(pos[0]) == '(') {
+			pos[0]++;
+			subfields = parseFields(mask, pos);
+			if (pos[0] >= mask.length() || mask.charAt(pos[0]) != ')') {
+				throw new IllegalArgumentException("Invalid mask '" + mask + "' at " + pos[0]);
+			}
+			pos[0]++;
+		} else if (pos[0] < mask.length() && mask.charAt(pos[0]) == '/') {
+			pos[0]++;
+			subfields = new HashMap<String, Object>();
+			parseField(mask, pos, subfields);
+		}
+		fields.put(name, subfields);
+	}
+
+	@SuppressWarnings("unchecked")
+	static Object project(Object json, Map<String, Object> mask) {
+		if (mask == null) {
+			return json;
+		}
+		if (json instanceof Collection) {
+			List<Object> ret = new ArrayList<Object>();
+			for (Object item : (Collection<Object>) json) {
+				ret.add(project(item, mask));
+			}
+			return ret;
+		}
+		if (!(json instanceof Map)) {
+			return json;
+		}
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> field : ((Map<String, Object>) json).entrySet()) {
+			if (mask.containsKey(field.getKey())) {
+				ret.put(field.getKey(), project(field.getValue(), (Map<String, Object>) mask.get(field.getKey())));
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,134 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpTransportTest {
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private PooledHttpTransport pool;
+
+	private GenericUrl url;
+
+	private volatile CountDownLatch blocked = new CountDownLatch(0);
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] response = "{}".getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, "HEAD".equals(exchange.getRequestMethod()) ? -1 : response.length);
+				OutputStream os = exchange.getResponseBody();
+				if (!"HEAD".equals(exchange.getRequestMethod())) {
+					os.write(response);
+				}
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		url = new GenericUrl("http://localhost:" + server.getAddress().getPort() + "/files");
+		executor = Executors.newCachedThreadPool();
+		Properties configuration = new Properties();
+		configuration.setProperty("http.maxConnectionsPerRoute", "3");
+		configuration.setProperty("http.warmup", "3");
+		pool = new PooledHttpTransport(configuration);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConnectionsAreReused() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			get();
+		}
+		Assert.assertEquals(1, pool.getConnects());
+		Assert.assertEquals(1, pool.getOpen());
+		Assert.assertEquals(0, pool.getLeased());
+	}
+
+	@Test
+	public void testRequestsWaitForAConnectionOfTheRoute() throws Exception {
+		blocked = new CountDownLatch(1);
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return get();
+				}
+			}));
+		}
+		for (int i = 0; i < 100 && (pool.getLeased() < 3 || pool.getPending() < 2); i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(3, pool.getLeased());
+		Assert.assertEquals(2, pool.getPending());
+		blocked.countDown();
+		for (Future<String> future : futures) {
+			Assert.assertEquals("{}", future.get());
+		}
+		Assert.assertEquals(3, pool.getConnects());
+		Assert.assertEquals(0, pool.getLeased());
+		Assert.assertEquals(0, pool.getPending());
+	}
+
+	@Test
+	public void testWarmUpOpensConnections() throws Exception {
+		pool.warmUp(url.build());
+		for (int i = 0; i < 100 && (pool.getConnects() < 3 || pool.getLeased() > 0); i++) {
+			Thread.sleep(10);
+		}
+		// in parallel, so every warm up request has its own connection (the test server doesn't keep them after a HEAD)
+		Assert.assertEquals(3, pool.getConnects());
+		Assert.assertEquals(0, pool.getLeased());
+		Assert.assertEquals(0, pool.getHandshakes());
+	}
+
+	private String get() throws IOException {
+		HttpResponse response = pool.getTransport().createRequestFactory().buildGetRequest(url).execute();
+		try {
+			return IOUtils.toString(response.getContent(), "UTF-8");
+		} finally {
+			response.disconnect();
+		}
+	}
+}
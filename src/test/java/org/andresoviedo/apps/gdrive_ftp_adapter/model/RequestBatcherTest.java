@@ -0,0 +1,192 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.andresoviedo.util.program.RateLimiter;
+import org.andresoviedo.util.program.RateLimiter.Priority;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the batching against a local http server that answers the batch requests as google drive does.
+ */
+public class RequestBatcherTest {
+
+	private static final Pattern TRASH = Pattern.compile("/files/([^/\\s?]+)/trash");
+
+	private final AtomicInteger batches = new AtomicInteger();
+
+	private final AtomicInteger singles = new AtomicInteger();
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private Drive drive;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new DriveHandler());
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		drive = new Drive.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+				.setRootUrl("http://localhost:" + server.getAddress().getPort() + "/").setApplicationName("test").build();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentRequestsAreBatched() throws Exception {
+		final RequestBatcher batcher = new RequestBatcher(drive, new RateLimiter(100, 100), 3, 60000);
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		for (final String id : new String[] { "a", "missing", "c" }) {
+			results.add(executor.submit(new Callable<File>() {
+				@Override
+				public File call() throws Exception {
+					return batcher.execute(drive.files().trash(id));
+				}
+			}));
+		}
+		Assert.assertEquals("a", results.get(0).get().getId());
+		Assert.assertEquals("c", results.get(2).get().getId());
+		try {
+			results.get(1).get();
+			Assert.fail("missing file trashed");
+		} catch (ExecutionException e) {
+			Assert.assertEquals(404, ((HttpResponseException) e.getCause()).getStatusCode());
+		}
+		Assert.assertEquals(1, batches.get());
+		Assert.assertEquals(0, singles.get());
+	}
+
+	@Test
+	public void testLonelyRequestIsSentAfterDelay() throws IOException {
+		RequestBatcher batcher = new RequestBatcher(drive, new RateLimiter(100, 100), 50, 10);
+		Assert.assertEquals("a", batcher.execute(drive.files().trash("a")).getId());
+		Assert.assertEquals(0, batches.get());
+		Assert.assertEquals(1, singles.get());
+	}
+
+	@Test
+	public void testBatchIsSentWithTheHighestPriority() throws Exception {
+		final RateLimiter limiter = new RateLimiter(100, 100);
+		final RequestBatcher batcher = new RequestBatcher(drive, limiter, 50, 500);
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		for (final Priority priority : new Priority[] { Priority.SYNC, Priority.INTERACTIVE }) {
+			results.add(executor.submit(new Callable<File>() {
+				@Override
+				public File call() throws Exception {
+					RateLimiter.setPriority(priority);
+					return batcher.execute(drive.files().trash(priority.name()));
+				}
+			}));
+			// the background request is the first one, so it sends the batch
+			Thread.sleep(100);
+		}
+		Assert.assertEquals("SYNC", results.get(0).get().getId());
+		Assert.assertEquals("INTERACTIVE", results.get(1).get().getId());
+		Assert.assertEquals(1, batches.get());
+		Assert.assertEquals(1, limiter.getAcquired(Priority.INTERACTIVE));
+		Assert.assertEquals(0, limiter.getAcquired(Priority.SYNC));
+	}
+
+	@Test
+	public void testManyRequestsAreSplitInBatches() throws IOException {
+		RateLimiter limiter = new RateLimiter(100, 100);
+		RequestBatcher batcher = new RequestBatcher(drive, limiter, 50, 60000);
+		List<Drive.Files.Trash> requests = new ArrayList<Drive.Files.Trash>();
+		for (int i = 0; i < 150; i++) {
+			requests.add(drive.files().trash((i == 120 ? "missing" : "f") + i));
+		}
+		List<RequestBatcher.Pending<File>> responses = batcher.executeAll(requests);
+		Assert.assertEquals(150, responses.size());
+		Assert.assertEquals("f0", responses.get(0).get().getId());
+		Assert.assertEquals("f149", responses.get(149).get().getId());
+		try {
+			responses.get(120).get();
+			Assert.fail("missing file trashed");
+		} catch (HttpResponseException e) {
+			Assert.assertEquals(404, e.getStatusCode());
+		}
+		// google drive accepts 100 requests per batch, whatever the batch size of the concurrent requests
+		Assert.assertEquals(2, batches.get());
+		Assert.assertEquals(2, limiter.getAcquired());
+	}
+
+	/**
+	 * Trashes any file but the ones whose id starts with "missing"
+	 */
+	private final class DriveHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+				if (!exchange.getRequestURI().getPath().startsWith("/batch/")) {
+					singles.incrementAndGet();
+					Matcher matcher = TRASH.matcher(exchange.getRequestURI().getPath());
+					Assert.assertTrue(matcher.find());
+					send(exchange, HttpURLConnection.HTTP_OK, "application/json", "{\"id\":\"" + matcher.group(1) + "\"}");
+					return;
+				}
+				batches.incrementAndGet();
+				StringBuilder response = new StringBuilder();
+				Matcher matcher = TRASH.matcher(body);
+				while (matcher.find()) {
+					String id = matcher.group(1);
+					response.append("--batch_test\r\nContent-Type: application/http\r\n\r\n");
+					if (id.startsWith("missing")) {
+						response.append("HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\n\r\n");
+						response.append("{\"error\":{\"code\":404,\"message\":\"File not found: " + id + "\"}}\r\n");
+					} else {
+						response.append("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n");
+						response.append("{\"id\":\"" + id + "\"}\r\n");
+					}
+				}
+				response.append("--batch_test--\r\n");
+				send(exchange, HttpURLConnection.HTTP_OK, "multipart/mixed; boundary=batch_test", response.toString());
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void send(HttpExchange exchange, int status, String contentType, String content) throws IOException {
+			byte[] response = content.getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type", contentType);
+			exchange.sendResponseHeaders(status, response.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(response);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.andresoviedo.util.program.RateLimiter;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the resumable upload against a local http server that implements the upload session protocol of google drive.
+ */
+public class ResumableUploadTest {
+
+	private static final int CHUNK_SIZE = ResumableUpload.CHUNK_GRANULARITY;
+
+	private static final RetryPolicy RETRY = new RetryPolicy(10, 100, 3);
+
+	private static final RateLimiter LIMITER = new RateLimiter(1000, 1000);
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+
+	private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+	private final AtomicInteger failNextChunks = new AtomicInteger();
+
+	/**
+	 * Status of the next failed chunk
+	 */
+	private volatile int failureStatus = HttpURLConnection.HTTP_INTERNAL_ERROR;
+
+	/**
+	 * Max bytes of each request the server keeps (to simulate connections cut in the middle)
+	 */
+	private volatile int maxAcceptedBytes = Integer.MAX_VALUE;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private GenericUrl sessionUrl;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/session", new SessionHandler());
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		sessionUrl = new GenericUrl("http://localhost:" + server.getAddress().getPort() + "/session");
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testUploadInChunks() throws IOException {
+		byte[] content = content(CHUNK_SIZE * 3 + 1000);
+		ResumableUpload upload = upload(content);
+		Assert.assertArrayEquals(content, received.toByteArray());
+		Assert.assertEquals("uploaded", upload.getUploadedFile().getId());
+		Assert.assertEquals(4, requests.size());
+		Assert.assertEquals("bytes " + CHUNK_SIZE * 3 + "-" + (content.length - 1) + "/" + content.length, requests.get(3));
+	}
+
+	@Test
+	public void testLastChunkKnowsTotal() throws IOException {
+		byte[] content = content(CHUNK_SIZE * 2);
+		upload(content);
+		Assert.assertArrayEquals(content, received.toByteArray());
+		Assert.assertEquals("bytes " + CHUNK_SIZE + "-" + (content.length - 1) + "/" + content.length, requests.get(1));
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		Assert.assertEquals("uploaded", upload(new byte[0]).getUploadedFile().getId());
+		Assert.assertEquals(Collections.singletonList("bytes */0"), requests);
+	}
+
+	@Test
+	public void testFailedChunkIsResumed() throws IOException {
+		byte[] content = content(CHUNK_SIZE * 3);
+		failNextChunks.set(1);
+		maxAcceptedBytes = CHUNK_SIZE / 2;
+		upload(content);
+		Assert.assertArrayEquals(content, received.toByteArray());
+		// status was queried and only the missing part was sent again
+		Assert.assertTrue(requests.toString(), requests.contains("bytes */*"));
+		Assert.assertTrue(requests.toString(), requests.contains("bytes " + CHUNK_SIZE / 2 + "-" + (CHUNK_SIZE - 1) + "/*"));
+	}
+
+	@Test
+	public void testRejectedChunkIsNotRetried() throws IOException {
+		long acquired = LIMITER.getAcquired();
+		failNextChunks.set(1);
+		failureStatus = HttpURLConnection.HTTP_BAD_REQUEST;
+		maxAcceptedBytes = 0;
+		try {
+			upload(content(CHUNK_SIZE * 2));
+			Assert.fail("Upload should fail");
+		} catch (HttpResponseException e) {
+			Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, e.getStatusCode());
+		}
+		Assert.assertEquals(1, requests.size());
+		// every request goes through the rate limiter
+		Assert.assertEquals(1, LIMITER.getAcquired() - acquired);
+	}
+
+	@Test
+	public void testAbortedUploadIsContinued() throws IOException {
+		byte[] content = content(CHUNK_SIZE * 3 + 1000);
+		ResumableUpload upload = new ResumableUpload(new NetHttpTransport().createRequestFactory(), null, sessionUrl, 0, CHUNK_SIZE, RETRY,
+				LIMITER, executor, new TransferMetrics("test").start("file"), null);
+		upload.write(content, 0, CHUNK_SIZE * 2 + CHUNK_SIZE / 2);
+		upload.abort();
+		// the half chunk still in memory is lost
+		Assert.assertEquals(CHUNK_SIZE * 2, received.size());
+		Assert.assertEquals(CHUNK_SIZE * 2, upload.getUploaded());
+
+		long uploaded = ResumableUpload.getUploaded(new NetHttpTransport().createRequestFactory(), LIMITER, sessionUrl);
+		Assert.assertEquals(CHUNK_SIZE * 2, uploaded);
+
+		// the client resumes from an earlier offset (REST), so part of what it sends is discarded
+		int offset = CHUNK_SIZE + 100;
+		ResumableUpload resumed = new ResumableUpload(new NetHttpTransport().createRequestFactory(), new JacksonFactory()
+				.createJsonObjectParser(), sessionUrl, uploaded, CHUNK_SIZE, RETRY, LIMITER, executor, new TransferMetrics("test").start("file"), null);
+		resumed.discard(uploaded - offset);
+		resumed.write(content, offset, content.length - offset);
+		resumed.close();
+		Assert.assertArrayEquals(content, received.toByteArray());
+		Assert.assertEquals("uploaded", resumed.getUploadedFile().getId());
+	}
+
+	private ResumableUpload upload(byte[] content) throws IOException {
+		ResumableUpload upload = new ResumableUpload(new NetHttpTransport().createRequestFactory(), new JacksonFactory()
+				.createJsonObjectParser(), sessionUrl, 0, CHUNK_SIZE, RETRY, LIMITER, executor, new TransferMetrics("test").start("file"), null);
+		// written in small pieces as the ftp data connection does
+		for (int pos = 0; pos < content.length; pos += 4096) {
+			upload.write(content, pos, Math.min(4096, content.length - pos));
+		}
+		upload.close();
+		return upload;
+	}
+
+	private static byte[] content(int size) {
+		byte[] ret = new byte[size];
+		new Random(1).nextBytes(ret);
+		return ret;
+	}
+
+	/**
+	 * Stores the chunks in order, answering 308 with the received range until the total size is known.
+	 */
+	private final class SessionHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+				requests.add(contentRange);
+				Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+				Assert.assertTrue(contentRange, matcher.matches());
+				byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+				synchronized (received) {
+					if (matcher.group(1) != null) {
+						Assert.assertEquals(received.size(), Long.parseLong(matcher.group(1)));
+						boolean fail = failNextChunks.getAndDecrement() > 0;
+						int accepted = fail ? Math.min(body.length, maxAcceptedBytes) : body.length;
+						received.write(body, 0, accepted);
+						if (fail) {
+							exchange.sendResponseHeaders(failureStatus, -1);
+							return;
+						}
+					}
+					if (!"*".equals(matcher.group(3)) && received.size() == Long.parseLong(matcher.group(3))) {
+						byte[] response = "{\"id\":\"uploaded\"}".getBytes("UTF-8");
+						exchange.getResponseHeaders().add("Content-Type", "application/json");
+						exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+						OutputStream os = exchange.getResponseBody();
+						os.write(response);
+						return;
+					}
+					if (received.size() > 0) {
+						exchange.getResponseHeaders().add("Range", "bytes=0-" + (received.size() - 1));
+					}
+					exchange.sendResponseHeaders(308, -1);
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testRetriableErrors() {
+		Assert.assertTrue(RetryPolicy.isRetriable(error(500, null)));
+		Assert.assertTrue(RetryPolicy.isRetriable(error(503, null)));
+		Assert.assertTrue(RetryPolicy.isRetriable(error(429, null)));
+		Assert.assertTrue(RetryPolicy.isRetriable(error(403, "{\"errors\":[{\"reason\":\"userRateLimitExceeded\"}]}")));
+		Assert.assertTrue(RetryPolicy.isRetriable(new SocketTimeoutException()));
+		Assert.assertTrue(RetryPolicy.isRetriable(new IOException("Connection reset")));
+
+		Assert.assertFalse(RetryPolicy.isRetriable(error(403, "{\"errors\":[{\"reason\":\"dailyLimitExceeded\"}]}")));
+		Assert.assertFalse(RetryPolicy.isRetriable(error(403, null)));
+		Assert.assertFalse(RetryPolicy.isRetriable(error(404, null)));
+		Assert.assertFalse(RetryPolicy.isRetriable(error(400, null)));
+		Assert.assertFalse(RetryPolicy.isRetriable(new InterruptedIOException()));
+		Assert.assertFalse(RetryPolicy.isRetriable(new IllegalStateException()));
+	}
+
+	@Test
+	public void testDelayIsExponentialWithJitter() {
+		RetryPolicy policy = new RetryPolicy(100, 1000, 3);
+		long total = 0;
+		for (int i = 0; i < 1000; i++) {
+			long first = policy.getDelay(0);
+			Assert.assertTrue(first >= 0 && first <= 100);
+			total += first;
+			Assert.assertTrue(policy.getDelay(2) <= 400);
+			Assert.assertTrue(policy.getDelay(10) <= 1000);
+			Assert.assertTrue(policy.getDelay(100) <= 1000);
+		}
+		// the delays are spread, not all the same
+		Assert.assertTrue(total > 20000 && total < 80000);
+	}
+
+	@Test
+	public void testRetryAfterIsWaited() {
+		RetryPolicy policy = new RetryPolicy(1, 5000, 3);
+		HttpResponseException e = error(429, null);
+		e.getHeaders().setRetryAfter("1");
+		Assert.assertEquals(1000, RetryPolicy.getRetryAfter(e));
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(policy.backoff("list", e, 3));
+		Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+
+		// too long to keep the client waiting
+		e.getHeaders().setRetryAfter("60");
+		Assert.assertFalse(policy.backoff("list", e, 3));
+		Assert.assertEquals(1, policy.getRetries("list"));
+		Assert.assertEquals(1, policy.getFailures("list"));
+	}
+
+	@Test
+	public void testBudgetPerOperation() {
+		Properties configuration = new Properties();
+		configuration.setProperty("retry.delay", "1");
+		configuration.setProperty("retry.budget", "2");
+		configuration.setProperty("retry.upload.budget", "5");
+		RetryPolicy policy = new RetryPolicy(configuration);
+		Assert.assertEquals(2, policy.getBudget("list"));
+		Assert.assertEquals(5, policy.getBudget("upload"));
+
+		IOException e = new IOException("Connection reset");
+		int retry = policy.getBudget("list");
+		while (policy.backoff("list", e, retry)) {
+			retry--;
+		}
+		Assert.assertEquals(2, policy.getRetries("list"));
+		Assert.assertEquals(1, policy.getFailures("list"));
+		Assert.assertFalse(policy.backoff("get", error(404, null), 3));
+		Assert.assertEquals(0, policy.getRetries("get"));
+	}
+
+	private static HttpResponseException error(int status, String content) {
+		return new HttpResponseException.Builder(status, null, new HttpHeaders()).setContent(content).build();
+	}
+}
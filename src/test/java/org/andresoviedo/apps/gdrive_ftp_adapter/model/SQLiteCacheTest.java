@@ -0,0 +1,122 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class SQLiteCacheTest {
+
+	private static final String ACCOUNT = "test-sqlite-cache";
+
+	private Properties configuration;
+
+	@Before
+	public void setUp() {
+		configuration = new Properties();
+		configuration.setProperty("account", ACCOUNT);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(new File("data" + File.separator + ACCOUNT));
+	}
+
+	@Test
+	public void testDownloadUrlIsStored() throws Exception {
+		SQLiteCache cache = new SQLiteCache(configuration);
+		GFile file = createFile();
+		cache.addOrUpdateFile(file);
+
+		GFile stored = new SQLiteCache(configuration).getFile("id");
+		Assert.assertEquals("application/pdf", stored.getMimeType());
+		Assert.assertEquals(file.getDownloadUrl(), stored.getDownloadUrl());
+		Assert.assertEquals(1234, stored.getDownloadUrlTime());
+
+		stored.setDownloadUrl(new URL("http://localhost/new"), 5678);
+		cache.updateDownloadUrl(stored);
+		Assert.assertEquals(new URL("http://localhost/new"), cache.getFile("id").getDownloadUrl());
+		Assert.assertEquals(5678, cache.getFile("id").getDownloadUrlTime());
+	}
+
+	@Test
+	public void testFileByMd5() throws Exception {
+		SQLiteCache cache = new SQLiteCache(configuration);
+		GFile file = createFile();
+		file.setMd5Checksum("900150983cd24fb0d6963f7d28e17f72");
+		file.setLength(3);
+		cache.addOrUpdateFile(file);
+
+		Assert.assertEquals("id", cache.getFileByMd5("900150983cd24fb0d6963f7d28e17f72", 3).getId());
+		Assert.assertNull(cache.getFileByMd5("900150983cd24fb0d6963f7d28e17f72", 4));
+		Assert.assertNull(cache.getFileByMd5("d41d8cd98f00b204e9800998ecf8427e", 3));
+	}
+
+	@Test
+	public void testPlaceholdersAreKeptWhenFolderIsSynchronized() throws Exception {
+		SQLiteCache cache = new SQLiteCache(configuration);
+		GFile folder = new GFile(Collections.singleton("root"), "folder");
+		folder.setId("folder");
+		folder.setDirectory(true);
+		cache.addOrUpdateFile(folder);
+		GFile placeholder = new GFile(Collections.singleton("folder"), "new.txt");
+		placeholder.setId(Cache.PENDING_ID_PREFIX + "1");
+		cache.addOrUpdateFile(placeholder);
+		GFile removed = new GFile(Collections.singleton("folder"), "removed.txt");
+		removed.setId("removed");
+		cache.addOrUpdateFile(removed);
+
+		GFile listed = new GFile(Collections.singleton("folder"), "listed.txt");
+		listed.setId("listed");
+		cache.updateChilds(folder, Collections.singletonList(listed));
+
+		Set<String> childs = new HashSet<String>();
+		for (GFile child : cache.getFiles("folder")) {
+			childs.add(child.getId());
+		}
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("listed", Cache.PENDING_ID_PREFIX + "1")), childs);
+	}
+
+	@Test
+	public void testDatabaseIsUpgraded() throws Exception {
+		File dataDir = new File("data" + File.separator + ACCOUNT);
+		dataDir.mkdirs();
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("org.sqlite.JDBC");
+		dataSource.setUrl("jdbc:sqlite:file:data/" + ACCOUNT + "/gdrive.db");
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.execute("create table files (id text, revision integer, filename text not null, isDirectory boolean, "
+				+ "length integer, lastModified integer, md5Checksum text, primary key (id))");
+		jdbcTemplate.execute("create table childs (id integer primary key, childId text references files(id), "
+				+ "parentId text references files(id), unique (childId, parentId))");
+		jdbcTemplate.update("insert into files values('id',1,'old.pdf',0,10,0,null)");
+		dataSource.close();
+
+		SQLiteCache cache = new SQLiteCache(configuration);
+		Assert.assertNull(cache.getFile("id").getDownloadUrl());
+		cache.addOrUpdateFile(createFile());
+		Assert.assertEquals("application/pdf", cache.getFile("id").getMimeType());
+	}
+
+	private static GFile createFile() throws Exception {
+		GFile file = new GFile("file.pdf");
+		file.setId("id");
+		file.setParents(Collections.singleton("root"));
+		file.setMimeType("application/pdf");
+		file.setDownloadUrl(new URL("http://localhost/download?id=id"), 1234);
+		return file;
+	}
+}
@@ -0,0 +1,142 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the segmented download against a single stream using a local http server that throttles every connection, like
+ * googleapis does.
+ */
+public class SegmentedDownloadTest {
+
+	private static final int SIZE = 2 * 1024 * 1024;
+
+	private static final RetryPolicy RETRY = new RetryPolicy(10, 100, 3);
+
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	private final byte[] content = new byte[SIZE];
+
+	private final AtomicInteger failNextRequests = new AtomicInteger();
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private URL url;
+
+	@Before
+	public void setUp() throws IOException {
+		new Random(1).nextBytes(content);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/file", new ThrottledRangeHandler());
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		url = new URL("http://localhost:" + server.getAddress().getPort() + "/file");
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testSegmentedDownload() throws IOException {
+		byte[] single = IOUtils.toByteArray(open(0, SIZE - 1));
+		byte[] segmented = download(0, 256 * 1024, 4);
+		Assert.assertArrayEquals(content, single);
+		Assert.assertArrayEquals(content, segmented);
+	}
+
+	@Test
+	public void testSegmentedDownloadWithOffset() throws IOException {
+		int offset = 1000;
+		byte[] expected = new byte[SIZE - offset];
+		System.arraycopy(content, offset, expected, 0, expected.length);
+		Assert.assertArrayEquals(expected, download(offset, 300 * 1024, 3));
+	}
+
+	@Test
+	public void testSegmentRetry() throws IOException {
+		failNextRequests.set(2);
+		Assert.assertArrayEquals(content, download(0, 512 * 1024, 2));
+	}
+
+	private byte[] download(long offset, int segmentSize, int parallelism) throws IOException {
+		SegmentedDownload.RangeSource source = new SegmentedDownload.RangeSource() {
+			@Override
+			public InputStream open(long from, long to) throws IOException {
+				return SegmentedDownloadTest.this.open(from, to);
+			}
+		};
+		InputStream is = new SegmentedDownload(source, SIZE, offset, segmentSize, parallelism, RETRY, executor,
+				new TransferMetrics("test").start("file")).start();
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private InputStream open(long from, long to) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Range", "bytes=" + from + "-" + to);
+		if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			throw new IOException("Unexpected response " + connection.getResponseCode());
+		}
+		return connection.getInputStream();
+	}
+
+	/**
+	 * Serves byte ranges of the content at ~4MB/s per connection.
+	 */
+	private final class ThrottledRangeHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (failNextRequests.getAndDecrement() > 0) {
+					exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+					return;
+				}
+				Matcher matcher = RANGE.matcher(exchange.getRequestHeaders().getFirst("Range"));
+				matcher.matches();
+				int from = Integer.parseInt(matcher.group(1));
+				int to = matcher.group(2).isEmpty() ? SIZE - 1 : Integer.parseInt(matcher.group(2));
+				exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + SIZE);
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, to - from + 1);
+				OutputStream os = exchange.getResponseBody();
+				for (int pos = from; pos <= to; pos += 16 * 1024) {
+					os.write(content, pos, Math.min(16 * 1024, to - pos + 1));
+					Thread.sleep(4);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
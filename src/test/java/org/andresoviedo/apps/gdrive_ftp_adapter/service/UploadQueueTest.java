@@ -0,0 +1,187 @@
+package org.andresoviedo.apps.gdrive_ftp_adapter.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.Cache;
+import org.andresoviedo.apps.gdrive_ftp_adapter.model.GoogleDrive.GFile;
+import org.andresoviedo.util.io.Md5OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadQueueTest {
+
+	private static final String ACCOUNT = "test-upload-queue";
+
+	private final File queueDir = new File("data" + File.separator + ACCOUNT + File.separator + "uploads");
+
+	private final Map<String, GFile> placeholders = new ConcurrentHashMap<String, GFile>();
+
+	private final CountDownLatch uploading = new CountDownLatch(1);
+
+	private final CountDownLatch reject = new CountDownLatch(1);
+
+	/**
+	 * Keeps the placeholders and holds the upload of new files in the lookup of a file with the same content
+	 */
+	private final Cache cache = new Cache() {
+		@Override
+		public GFile getFileByMd5(String md5Checksum, long length) {
+			uploading.countDown();
+			try {
+				reject.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new IllegalStateException("Upload rejected");
+		}
+
+		@Override
+		public void addOrUpdateFile(GFile file) {
+			placeholders.put(file.getId(), file);
+		}
+
+		@Override
+		public int deleteFile(String id) {
+			return placeholders.remove(id) != null ? 1 : 0;
+		}
+
+		@Override
+		public GFile getFile(String id) {
+			return placeholders.get(id);
+		}
+
+		@Override
+		public List<GFile> getFiles(String folderId) {
+			return new ArrayList<GFile>(placeholders.values());
+		}
+
+		@Override
+		public GFile getFileByName(String parentId, String filename) {
+			return null;
+		}
+
+		@Override
+		public boolean updateFile(GFile file) {
+			return false;
+		}
+
+		@Override
+		public void updateDownloadUrl(GFile file) {
+		}
+
+		@Override
+		public long getRevision() {
+			return 0;
+		}
+
+		@Override
+		public List<String> getAllFolderByRevision(long i) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void updateChilds(GFile file, List<GFile> newChilds) {
+		}
+	};
+
+	private Properties configuration;
+
+	private UploadQueue queue;
+
+	@Before
+	public void setUp() throws IOException {
+		configuration = new Properties();
+		configuration.setProperty("account", ACCOUNT);
+		configuration.setProperty("upload.mode", "writeback");
+		FileUtils.forceMkdir(queueDir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		reject.countDown();
+		if (queue != null) {
+			queue.stop();
+		}
+		FileUtils.deleteDirectory(new File("data" + File.separator + ACCOUNT));
+	}
+
+	@Test
+	public void testJournalIsReplayed() throws Exception {
+		File intact = journal("1-1", "intact.txt", "hello world".getBytes("UTF-8"), 11, md5("hello world"));
+		File truncated = journal("2-1", "truncated.txt", "hello".getBytes("UTF-8"), 11, md5("hello world"));
+		File corrupted = journal("3-1", "corrupted.txt", "hello_world".getBytes("UTF-8"), 11, md5("hello world"));
+		// content of an upload not confirmed to the client
+		File notJournaled = new File(queueDir, "4-1.upload.partial.txt");
+		FileUtils.writeStringToFile(notJournaled, "hel", "UTF-8");
+
+		queue = new UploadQueue(configuration, cache, null, null);
+
+		// accepted upload is enqueued again and shown in its folder
+		Assert.assertTrue(new File(queueDir, "1-1.journal").exists());
+		Assert.assertTrue(intact.exists());
+		GFile placeholder = placeholders.get(UploadQueue.PENDING_ID_PREFIX + "1-1");
+		Assert.assertNotNull(placeholder);
+		Assert.assertEquals("intact.txt", placeholder.getName());
+		Assert.assertEquals(intact, queue.getPendingContent(placeholder));
+
+		// content that doesn't match its journal is discarded
+		Assert.assertFalse(new File(queueDir, "2-1.journal").exists());
+		Assert.assertFalse(truncated.exists());
+		Assert.assertFalse(new File(queueDir, "3-1.journal").exists());
+		Assert.assertFalse(corrupted.exists());
+		Assert.assertFalse(notJournaled.exists());
+		Assert.assertEquals(1, placeholders.size());
+
+		uploading.await();
+		reject.countDown();
+		// rejected, so it's kept in the dead letters
+		File failedData = new File(queueDir, "failed" + File.separator + intact.getName());
+		for (int i = 0; i < 50 && !failedData.exists(); i++) {
+			Thread.sleep(100);
+		}
+		Assert.assertTrue(failedData.exists());
+		Assert.assertTrue(new File(queueDir, "failed" + File.separator + "1-1.journal").exists());
+		Assert.assertFalse(new File(queueDir, "1-1.journal").exists());
+		Assert.assertTrue(placeholders.isEmpty());
+		Assert.assertNull(queue.getPendingContent(placeholder));
+	}
+
+	private File journal(String id, String name, byte[] content, long length, String md5) throws IOException {
+		File data = new File(queueDir, id + ".upload." + name);
+		FileUtils.writeByteArrayToFile(data, content);
+		Properties journal = new Properties();
+		journal.setProperty("data", data.getName());
+		journal.setProperty("name", name);
+		journal.setProperty("parentId", "folder");
+		journal.setProperty("lastModified", "1000");
+		journal.setProperty("length", String.valueOf(length));
+		journal.setProperty("md5", md5);
+		OutputStream os = new FileOutputStream(new File(queueDir, id + ".journal"));
+		try {
+			journal.store(os, null);
+		} finally {
+			os.close();
+		}
+		return data;
+	}
+
+	private static String md5(String content) throws IOException {
+		Md5OutputStream checksum = new Md5OutputStream(new NullOutputStream());
+		checksum.write(content.getBytes("UTF-8"));
+		return checksum.getMd5();
+	}
+}
@@ -0,0 +1,144 @@
+package org.andresoviedo.util.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compares the ways of sending a locally cached file to a socket:
+ * <ul>
+ * <li>stream: FileInputStream + skip + buffered copy, what ftpserver's IODataConnection does</li>
+ * <li>channel: {@link FileChannelInputStream} + the same buffered copy (what we do now)</li>
+ * <li>transferTo: {@link FileChannelInputStream#transferTo} to a socket channel (sendfile). ftpserver 1.0.6 data connections are
+ * plain sockets without channel, so this is the ceiling we can't reach yet</li>
+ * </ul>
+ * Usage: <code>FileChannelInputStreamBenchmark [maxSizeInBytes]</code>. Sizes go from 1KB to max (default 100MB, use
+ * 10737418240 for 10GB) multiplying by 10.
+ */
+public class FileChannelInputStreamBenchmark {
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+	public static void main(String[] args) throws Exception {
+		long maxSize = args.length > 0 ? Long.parseLong(args[0]) : 100L * 1000 * 1000;
+		System.out.println("size\tstream(ms)\tchannel(ms)\ttransferTo(ms)");
+		try {
+			for (long size = 1000; size <= maxSize; size *= 10) {
+				File file = createFile(size);
+				try {
+					System.out.println(size + "\t" + benchmarkStream(file, false) + "\t" + benchmarkStream(file, true) + "\t"
+							+ benchmarkTransferTo(file));
+				} finally {
+					FileUtils.deleteQuietly(file);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static File createFile(long size) throws IOException {
+		File file = File.createTempFile("benchmark-", ".data");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] block = new byte[1024 * 1024];
+			for (int i = 0; i < block.length; i++) {
+				block[i] = (byte) i;
+			}
+			for (long written = 0; written < size; written += block.length) {
+				raf.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+
+	private static long benchmarkStream(File file, boolean channel) throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		try {
+			Future<Long> sink = sink(server.getLocalPort());
+			Socket socket = server.accept();
+			long start = System.currentTimeMillis();
+			InputStream is = channel ? new FileChannelInputStream(file, 0) : FileUtils.openInputStream(file);
+			try {
+				is.skip(0);
+				// same as IODataConnection.transferToClient
+				InputStream in = new BufferedInputStream(is);
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				out.flush();
+			} finally {
+				is.close();
+				socket.close();
+			}
+			sink.get();
+			return System.currentTimeMillis() - start;
+		} finally {
+			server.close();
+		}
+	}
+
+	private static long benchmarkTransferTo(File file) throws Exception {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.socket().bind(new InetSocketAddress("localhost", 0));
+			Future<Long> sink = sink(server.socket().getLocalPort());
+			SocketChannel socket = server.accept();
+			long start = System.currentTimeMillis();
+			FileChannelInputStream is = new FileChannelInputStream(file, 0);
+			try {
+				is.transferTo(socket);
+			} finally {
+				is.close();
+				socket.close();
+			}
+			sink.get();
+			return System.currentTimeMillis() - start;
+		} finally {
+			server.close();
+		}
+	}
+
+	private static Future<Long> sink(final int port) {
+		return executor.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+				try {
+					ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+					long total = 0;
+					int read;
+					while ((read = channel.read(buffer)) != -1) {
+						total += read;
+						buffer.clear();
+					}
+					return total;
+				} finally {
+					IOUtils.closeQuietly(channel);
+				}
+			}
+		});
+	}
+}
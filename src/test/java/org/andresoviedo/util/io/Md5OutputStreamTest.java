@@ -0,0 +1,27 @@
+package org.andresoviedo.util.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Md5OutputStreamTest {
+
+	@Test
+	public void testChecksumOfWrittenContent() throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		Md5OutputStream os = new Md5OutputStream(content);
+		os.write('a');
+		os.write("abcd".getBytes("UTF-8"), 1, 2);
+		os.close();
+		Assert.assertEquals("abc", content.toString("UTF-8"));
+		Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", os.getMd5());
+		Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", os.getMd5());
+	}
+
+	@Test
+	public void testEmptyContent() {
+		Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", new Md5OutputStream(new ByteArrayOutputStream()).getMd5());
+	}
+}
@@ -0,0 +1,84 @@
+package org.andresoviedo.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpoolOutputStreamTest {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	@Test
+	public void testSmallContentStaysInMemory() throws IOException {
+		BufferPool pool = new BufferPool(BLOCK_SIZE, BLOCK_SIZE * 8);
+		byte[] content = content(BLOCK_SIZE * 3 + 10);
+		SpoolOutputStream spool = spool(pool, BLOCK_SIZE * 4, content);
+		Assert.assertTrue(spool.isInMemory());
+		Assert.assertEquals(content.length, spool.getLength());
+		Assert.assertArrayEquals(content, read(spool));
+		// the content can be read again (i.e. an upload retried)
+		Assert.assertArrayEquals(content, read(spool));
+		Assert.assertEquals(BLOCK_SIZE * 4, pool.getUsed());
+		spool.dispose();
+		Assert.assertEquals(0, pool.getUsed());
+	}
+
+	@Test
+	public void testBigContentSpillsToDisk() throws IOException {
+		BufferPool pool = new BufferPool(BLOCK_SIZE, BLOCK_SIZE * 8);
+		byte[] content = content(BLOCK_SIZE * 6 + 10);
+		SpoolOutputStream spool = spool(pool, BLOCK_SIZE * 2, content);
+		Assert.assertFalse(spool.isInMemory());
+		Assert.assertEquals(BLOCK_SIZE * 2, pool.getUsed());
+		Assert.assertArrayEquals(content, read(spool));
+		InputStream is = spool.getInputStream();
+		IOUtils.skipFully(is, BLOCK_SIZE * 3);
+		Assert.assertEquals(content[BLOCK_SIZE * 3] & 0xff, is.read());
+		is.close();
+		spool.dispose();
+		Assert.assertEquals(0, pool.getUsed());
+	}
+
+	@Test
+	public void testExhaustedPoolSpillsToDisk() throws IOException {
+		BufferPool pool = new BufferPool(BLOCK_SIZE, BLOCK_SIZE * 2);
+		byte[] content = content(BLOCK_SIZE * 2);
+		SpoolOutputStream first = spool(pool, BLOCK_SIZE * 4, content);
+		SpoolOutputStream second = spool(pool, BLOCK_SIZE * 4, content);
+		Assert.assertTrue(first.isInMemory());
+		Assert.assertFalse(second.isInMemory());
+		Assert.assertArrayEquals(content, read(second));
+		first.dispose();
+		second.dispose();
+		Assert.assertTrue(spool(pool, BLOCK_SIZE * 4, content).isInMemory());
+	}
+
+	private static SpoolOutputStream spool(BufferPool pool, long maxMemory, byte[] content) throws IOException {
+		SpoolOutputStream ret = new SpoolOutputStream(pool, maxMemory, "test");
+		// written in small pieces as the ftp data connection does
+		for (int pos = 0; pos < content.length; pos += 100) {
+			ret.write(content, pos, Math.min(100, content.length - pos));
+		}
+		ret.close();
+		return ret;
+	}
+
+	private static byte[] read(SpoolOutputStream spool) throws IOException {
+		InputStream is = spool.getInputStream();
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] content(int size) {
+		byte[] ret = new byte[size];
+		new Random(1).nextBytes(ret);
+		return ret;
+	}
+}
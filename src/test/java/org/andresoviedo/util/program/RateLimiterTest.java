@@ -0,0 +1,151 @@
+package org.andresoviedo.util.program;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.andresoviedo.util.program.RateLimiter.Priority;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	@After
+	public void tearDown() {
+		RateLimiter.setPriority(Priority.INTERACTIVE);
+	}
+
+	@Test
+	public void testBurstDoesNotWait() throws InterruptedIOException {
+		RateLimiter limiter = new RateLimiter(1, 5);
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		}
+		// the bucket is empty, so the next one must wait a whole interval
+		Assert.assertFalse(limiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(5, limiter.getAcquired());
+		Assert.assertEquals(0, limiter.getDelayed());
+	}
+
+	@Test
+	public void testSustainedRate() throws Exception {
+		final RateLimiter limiter = new RateLimiter(100, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		long start = System.nanoTime();
+		try {
+			Future<?>[] futures = new Future<?>[4];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int j = 0; j < 10; j++) {
+							limiter.acquire();
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		// 40 requests at 100 per second, the first one without waiting
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("elapsed " + elapsed, elapsed >= 370);
+		Assert.assertEquals(40, limiter.getAcquired());
+		Assert.assertTrue(limiter.getMaxWaitMillis() > 0);
+	}
+
+	@Test
+	public void testInterruptedWaitGivesPermitBack() throws Exception {
+		final RateLimiter limiter = new RateLimiter(1, 1);
+		limiter.acquire();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					limiter.acquire();
+				} catch (InterruptedIOException e) {
+					interrupted.set(Thread.currentThread().isInterrupted());
+				}
+			}
+		};
+		waiting.start();
+		Thread.sleep(100);
+		waiting.interrupt();
+		waiting.join(1000);
+		Assert.assertTrue(interrupted.get());
+		Assert.assertEquals(1, limiter.getAcquired());
+		// the permit of the interrupted request is available again for the next one
+		Assert.assertTrue(limiter.tryAcquire(1100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testLowPriorityLeavesTokensToInteractive() throws InterruptedIOException {
+		RateLimiter limiter = new RateLimiter(1, 4, 1, TimeUnit.MINUTES);
+		RateLimiter.setPriority(Priority.SYNC);
+		// half of the bucket is kept for the higher priorities
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		Assert.assertFalse(limiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+		RateLimiter.setPriority(Priority.INTERACTIVE);
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		Assert.assertFalse(limiter.tryAcquire(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(2, limiter.getAcquired(Priority.SYNC));
+		Assert.assertEquals(2, limiter.getAcquired(Priority.INTERACTIVE));
+	}
+
+	@Test
+	public void testAgingLetsLowPriorityThrough() throws InterruptedIOException {
+		RateLimiter limiter = new RateLimiter(1, 4, 200, TimeUnit.MILLISECONDS);
+		RateLimiter.setPriority(Priority.MAINTENANCE);
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		Assert.assertFalse(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		// while waiting it takes the tokens kept for the interactive requests little by little, the 2 it needs after a third of the
+		// aging time
+		long start = System.nanoTime();
+		Assert.assertTrue(limiter.tryAcquire(1, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("elapsed " + elapsed, elapsed >= 60 && elapsed < 900);
+		Assert.assertEquals(1, limiter.getDelayed(Priority.MAINTENANCE));
+	}
+
+	@Test
+	public void testPriorityRaisedByAnotherThread() throws Exception {
+		final RateLimiter limiter = new RateLimiter(1, 4, 1, TimeUnit.MINUTES);
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+		// the tokens left are kept for higher priorities
+		RateLimiter.setPriority(Priority.MAINTENANCE);
+		final AtomicReference<Priority> priority = RateLimiter.currentPriority();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+				// i.e. a client starts waiting for this prefetch
+				priority.set(Priority.INTERACTIVE);
+			}
+		}.start();
+		long start = System.nanoTime();
+		Assert.assertTrue(limiter.tryAcquire(5, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("elapsed " + elapsed, elapsed >= 150 && elapsed < 2000);
+		Assert.assertEquals(Priority.INTERACTIVE, RateLimiter.getPriority());
+		Assert.assertEquals(3, limiter.getAcquired(Priority.INTERACTIVE));
+		Assert.assertEquals(0, limiter.getAcquired(Priority.MAINTENANCE));
+	}
+}
@@ -0,0 +1,164 @@
+package org.andresoviedo.util.program;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final SingleFlight<String, String> flight = new SingleFlight<String, String>("test");
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentCallsRunOnce() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		List<Future<String>> futures = submit(5, "a", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				runs.incrementAndGet();
+				release.await();
+				return "result";
+			}
+		});
+		waitCoalesced(4);
+		release.countDown();
+		for (Future<String> future : futures) {
+			Assert.assertEquals("result", future.get());
+		}
+		Assert.assertEquals(1, runs.get());
+		Assert.assertEquals(5, flight.getCalls());
+		Assert.assertEquals(0.8, flight.getCoalescingRatio(), 0.001);
+		Assert.assertEquals(0, flight.getRunning());
+
+		// finished calls are not cached
+		Assert.assertEquals("again", flight.execute("a", new Callable<String>() {
+			@Override
+			public String call() {
+				return "again";
+			}
+		}));
+		Assert.assertEquals(6, flight.getCalls());
+		Assert.assertEquals(4, flight.getCoalesced());
+	}
+
+	@Test
+	public void testDifferentKeysAreNotCoalesced() throws Exception {
+		final CountDownLatch running = new CountDownLatch(2);
+		Callable<String> call = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				running.countDown();
+				// both must be running at the same time
+				Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+				return Thread.currentThread().getName();
+			}
+		};
+		Future<String> a = submit(1, "a", call).get(0);
+		Future<String> b = submit(1, "b", call).get(0);
+		Assert.assertNotEquals(a.get(), b.get());
+		Assert.assertEquals(0, flight.getCoalesced());
+	}
+
+	@Test
+	public void testErrorIsShared() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final RuntimeException error = new IllegalStateException("not found");
+		List<Future<String>> futures = submit(3, "a", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				release.await();
+				throw error;
+			}
+		});
+		waitCoalesced(2);
+		release.countDown();
+		for (Future<String> future : futures) {
+			try {
+				future.get();
+				Assert.fail("Call should fail");
+			} catch (ExecutionException e) {
+				Assert.assertSame(error, e.getCause());
+			}
+		}
+	}
+
+	@Test
+	public void testInterruptedLeaderDoesNotFailTheOthers() throws Exception {
+		final CountDownLatch leaderRunning = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		final Thread[] leader = new Thread[1];
+		Future<String> first = submit(1, "a", new Callable<String>() {
+			@Override
+			public String call() {
+				runs.incrementAndGet();
+				leader[0] = Thread.currentThread();
+				leaderRunning.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				return "leader";
+			}
+		}).get(0);
+		leaderRunning.await();
+		Future<String> second = submit(1, "a", new Callable<String>() {
+			@Override
+			public String call() {
+				runs.incrementAndGet();
+				return "follower";
+			}
+		}).get(0);
+		waitCoalesced(1);
+		leader[0].interrupt();
+
+		Assert.assertEquals("follower", second.get());
+		try {
+			first.get();
+			Assert.fail("Leader should fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getCause() instanceof InterruptedException);
+		}
+		Assert.assertEquals(2, runs.get());
+		Assert.assertEquals(0, flight.getCoalesced());
+	}
+
+	private List<Future<String>> submit(int count, final String key, final Callable<String> call) {
+		List<Future<String>> ret = new ArrayList<Future<String>>();
+		for (int i = 0; i < count; i++) {
+			ret.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return flight.execute(key, call);
+				}
+			}));
+		}
+		return ret;
+	}
+
+	private void waitCoalesced(int count) throws InterruptedException {
+		for (int i = 0; i < 500 && flight.getCoalesced() < count; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(count, flight.getCoalesced());
+	}
+}